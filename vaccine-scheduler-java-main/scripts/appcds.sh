@@ -0,0 +1,51 @@
+#!/bin/sh
+# run the scheduler with an application class-data sharing archive so the JVM maps the
+# already parsed and verified classes (driver included) instead of loading them from the jars
+#   scripts/appcds.sh train   records the classes used by a training session into the archive
+#   scripts/appcds.sh [args]  runs the scheduler with the archive, or without one if it was never trained
+# CDS only accepts jar files on the class path, so the classes are packaged first. training runs
+# scripts/scenarios/training.txt, logins and reads only, so the archive covers the driver, the model
+# classes and the code paths of the common commands, not just startup and quit. it still talks to a
+# real database, so it only runs on request and only against a database given with DbUrl (a local
+# or dev database seeded with scheduler.db.Seeder), never the Server/DBName deployment
+cd "$(dirname "$0")/.." || exit 1
+
+JAR=build/scheduler.jar
+CLASSPATH=$JAR:mssql-jdbc-9.4.0.jre11.jar
+ARCHIVE=build/scheduler.jsa
+TRAINING=scripts/scenarios/training.txt
+
+package() {
+    rm -rf build/appcds-classes
+    mkdir -p build/appcds-classes
+    javac -cp mssql-jdbc-9.4.0.jre11.jar -d build/appcds-classes $(find src/main -name '*.java') || exit 1
+    jar --create --file "$JAR" -C build/appcds-classes . || exit 1
+}
+
+train() {
+    if [ -z "$DbUrl" ]; then
+        echo "training needs DbUrl pointing at a local or dev database"
+        exit 1
+    fi
+    package
+    # no archiver pass and no heartbeat writes while training
+    env -u ArchiveAfterDays -u ReplicaHeartbeatWriter \
+        java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$CLASSPATH" scheduler.Scheduler < "$TRAINING" > /dev/null
+    if [ ! -f "$ARCHIVE" ]; then
+        echo "no archive was written to $ARCHIVE"
+        exit 1
+    fi
+}
+
+if [ "$1" = "train" ]; then
+    train
+    exit
+fi
+if [ ! -f "$ARCHIVE" ] || [ ! -f "$JAR" ]; then
+    echo "no class-data archive yet, run scripts/appcds.sh train against a dev database" >&2
+    if [ ! -f "$JAR" ]; then
+        package
+    fi
+    exec java -cp "$CLASSPATH" scheduler.Scheduler "$@"
+fi
+exec java -XX:SharedArchiveFile="$ARCHIVE" -cp "$CLASSPATH" scheduler.Scheduler "$@"
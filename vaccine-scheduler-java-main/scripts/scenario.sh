@@ -0,0 +1,18 @@
+#!/bin/sh
+# runs scenario files (default: every scripts/scenarios/*.scenario) with scheduler.ScenarioRunner
+# against the database configured in the environment, e.g. DbUrl pointing at a local SQL Server
+# with src/main/resources/create.sql loaded by scheduler.db.Seeder. every command's output is
+# checked against the scenario's expectations and held to its latency and query budgets, the
+# script fails if any scenario does
+#   scripts/scenario.sh [scenario ...]
+# ScenarioBudgetMicros (default 2000000) is the latency budget of every single command
+cd "$(dirname "$0")/.." || exit 1
+
+CLASSPATH=build/classes:mssql-jdbc-9.4.0.jre11.jar
+
+if [ $# -eq 0 ]; then
+    set -- scripts/scenarios/*.scenario
+fi
+javac -cp "$CLASSPATH" -d build/classes $(find src/main -name '*.java') || exit 1
+
+exec java -cp "$CLASSPATH" scheduler.ScenarioRunner "$@"
@@ -1,3 +1,36 @@
+-- every clinic owns its own availability, dose inventory and range of appointment IDs
+-- [IdBase, IdBase + 10000000), bookings take their IDs from NextId,
+-- see scheduler.model.Clinic
+CREATE TABLE Clinics (
+    Name varchar(255),
+    IdBase int UNIQUE,
+    NextId int,
+    PRIMARY KEY (Name)
+);
+
+INSERT INTO Clinics VALUES ('main', 0, 1);
+
+-- single row holding the primary's time, refreshed every second by the one scheduler process
+-- started with ReplicaHeartbeatWriter=true, so the age of the row on a read replica tells how far
+-- the replica lags behind, see scheduler.db.ConnectionManager
+CREATE TABLE Heartbeat (
+    Id int,
+    Beat datetime2,
+    PRIMARY KEY (Id)
+);
+
+INSERT INTO Heartbeat VALUES (1, SYSUTCDATETIME());
+
+-- results of commands sent with a client request token, see scheduler.db.RequestTokens
+CREATE TABLE RequestTokens (
+    Username varchar(255),
+    Token varchar(255),
+    Command varchar(255),
+    Result varchar(1000),
+    CreatedAt datetime2,
+    PRIMARY KEY (Username, Token)
+);
+
 CREATE TABLE Caregivers (
     Username varchar(255),
     Salt BINARY(16),
@@ -8,13 +41,24 @@ CREATE TABLE Caregivers (
 CREATE TABLE Availabilities (
     Time date,
     Username varchar(255) REFERENCES Caregivers,
-    PRIMARY KEY (Time, Username)
+    Clinic varchar(255) DEFAULT 'main' REFERENCES Clinics,
+    PRIMARY KEY (Clinic, Time, Username)
+);
+
+-- per caregiver per day bitmap of free 15-minute slots, see scheduler.util.SlotBitmap
+CREATE TABLE AvailabilitySlots (
+    Time date,
+    Username varchar(255) REFERENCES Caregivers,
+    Slots BINARY(12),
+    Clinic varchar(255) DEFAULT 'main' REFERENCES Clinics,
+    PRIMARY KEY (Clinic, Time, Username)
 );
 
 CREATE TABLE Vaccines (
     Name varchar(255),
     Doses int,
-    PRIMARY KEY (Name)
+    Clinic varchar(255) DEFAULT 'main' REFERENCES Clinics,
+    PRIMARY KEY (Clinic, Name)
 );
 
 CREATE TABLE Patients (
@@ -28,7 +72,30 @@ CREATE TABLE Appointments (
     ID INT,
     C_name varchar(255) REFERENCES Caregivers,
     P_name varchar(255) REFERENCES Patients,
-    V_name varchar(255) REFERENCES Vaccines,
+    V_name varchar(255),
     Time date,
+    Slot int,
+    Clinic varchar(255) DEFAULT 'main' REFERENCES Clinics,
+    PRIMARY KEY (ID),
+    FOREIGN KEY (Clinic, V_name) REFERENCES Vaccines (Clinic, Name)
+);
+
+CREATE INDEX Appointments_Clinic_Time ON Appointments (Clinic, Time);
+-- lets my_calendar read a caregiver's appointments already in date order
+CREATE INDEX Appointments_Caregiver_Time ON Appointments (C_name, Clinic, Time);
+
+-- appointments moved out of the live table by scheduler.db.Archiver, no foreign keys
+-- since it is the target of DELETE ... OUTPUT INTO
+CREATE TABLE AppointmentsArchive (
+    ID INT,
+    C_name varchar(255),
+    P_name varchar(255),
+    V_name varchar(255),
+    Time date,
+    Slot int,
+    Clinic varchar(255),
     PRIMARY KEY (ID)
-);
\ No newline at end of file
+);
+
+CREATE INDEX AppointmentsArchive_C_name ON AppointmentsArchive (C_name);
+CREATE INDEX AppointmentsArchive_P_name ON AppointmentsArchive (P_name);
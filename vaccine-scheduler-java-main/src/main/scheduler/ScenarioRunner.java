@@ -0,0 +1,398 @@
+package scheduler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// runs scenario files against scheduler processes in JSON mode and checks their replies, exits
+// with status 1 if any scenario failed (see scripts/scenario.sh):
+//   java scheduler.ScenarioRunner scripts/scenarios/*.scenario
+// the processes inherit the environment, so DbUrl and friends select the database. a scenario
+// has one directive per line, blank lines and lines starting with # are skipped:
+//   A> <command>              send the command to instance A and wait for its reply, B to Z
+//                             are further scheduler processes against the same database
+//   A& <command>              send the command without waiting, "A wait" collects the reply
+//   A wait
+//   < <regex>                 some line of the last reply matches
+//   <! <regex>                no line of the last reply matches
+//   <$<name> <regex>          some line matches, its first group is kept as ${name}
+//   outcome <outcome>         the last reply had this outcome, otherwise every reply must be ok
+//   budget [micros=<n>] [queries=<n>]
+//                             the last reply took at most this long and prepared at most this
+//                             many statements, every reply is held to ScenarioBudgetMicros anyway
+//   check <value> ==|!= <value>
+//   sleep <millis>
+// ${run} is unique to the run of a scenario and ${date}, ${date2} are two consecutive days far in
+// the future that no other run uses, so runs do not see each other's users, vaccines or bookings
+public class ScenarioRunner {
+
+    private static final long budgetMicros = parseLong(System.getenv("ScenarioBudgetMicros"), 2000000);
+    private static final long timeoutSeconds = parseLong(System.getenv("ScenarioTimeoutSeconds"), 60);
+    // days after this date that ${date} is picked from
+    private static final LocalDate FIRST_DATE = LocalDate.of(2200, 1, 1);
+    private static final int DATE_RANGE = 2000000;
+    // used by the scheduler processes unless SessionSecret is set already
+    private static final String sessionSecret = "scenario-" + Long.toString(ThreadLocalRandom.current().nextLong(), 36);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: scheduler.ScenarioRunner <scenario> [scenario ...]");
+            System.exit(2);
+        }
+        int failed = 0;
+        for (String path : args) {
+            String failure = new ScenarioRunner().run(path);
+            if (failure == null) {
+                System.out.println("PASS " + path);
+            } else {
+                System.out.println("FAIL " + path + ":" + failure);
+                failed++;
+            }
+        }
+        System.out.println((args.length - failed) + " passed, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private final Map<String, Instance> instances = new HashMap<>();
+    private final Map<String, String> variables = new HashMap<>();
+    private Reply last = null;
+    private boolean outcomeChecked = true;
+
+    // returns null if the scenario passed, otherwise the line number and what went wrong
+    private String run(String path) throws IOException {
+        int day = ThreadLocalRandom.current().nextInt(DATE_RANGE);
+        variables.put("run", Long.toString(System.currentTimeMillis(), 36) + Integer.toString(day, 36));
+        variables.put("date", FIRST_DATE.plusDays(day).toString());
+        variables.put("date2", FIRST_DATE.plusDays(day + 1).toString());
+        List<String> lines = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
+        int number = 0;
+        try {
+            for (String line : lines) {
+                number++;
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    execute(line);
+                }
+            }
+            number++;
+            checkOutcome();
+            return null;
+        } catch (ScenarioException e) {
+            String reply = last == null ? "" : System.lineSeparator() + "  last reply: " + last.json;
+            return number + ": " + e.getMessage() + reply;
+        } finally {
+            for (Instance instance : instances.values()) {
+                instance.close();
+            }
+        }
+    }
+
+    private void execute(String line) throws IOException, ScenarioException {
+        String[] parts = line.split(" ", 2);
+        String directive = parts[0];
+        String argument = parts.length > 1 ? parts[1].trim() : "";
+        if (directive.matches("[A-Z]>")) {
+            Instance instance = instance(directive.substring(0, 1));
+            instance.send(substitute(argument, false));
+            receive(instance);
+        } else if (directive.matches("[A-Z]&")) {
+            instance(directive.substring(0, 1)).send(substitute(argument, false));
+        } else if (directive.matches("[A-Z]") && argument.equals("wait")) {
+            receive(instance(directive));
+        } else if (directive.equals("<")) {
+            if (find(argument) == null) {
+                throw new ScenarioException("no line matches " + argument);
+            }
+        } else if (directive.equals("<!")) {
+            Matcher matcher = find(argument);
+            if (matcher != null) {
+                throw new ScenarioException("unexpected line " + matcher.group());
+            }
+        } else if (directive.startsWith("<$")) {
+            Matcher matcher = find(argument);
+            if (matcher == null || matcher.groupCount() < 1) {
+                throw new ScenarioException("no line matches " + argument);
+            }
+            variables.put(directive.substring(2), matcher.group(1));
+        } else if (directive.equals("outcome")) {
+            if (!lastReply().outcome.equals(argument)) {
+                throw new ScenarioException("outcome " + last.outcome + ", expected " + argument);
+            }
+            outcomeChecked = true;
+        } else if (directive.equals("budget")) {
+            for (String limit : argument.split(" ")) {
+                String[] pair = limit.split("=", 2);
+                if (pair.length != 2 || !pair[1].matches("\\d+")) {
+                    throw new ScenarioException("bad budget " + limit);
+                }
+                long value = Long.parseLong(pair[1]);
+                if (pair[0].equals("micros")) {
+                    if (lastReply().durationMicros > value) {
+                        throw new ScenarioException("took " + last.durationMicros + " us, budget " + value + " us");
+                    }
+                } else if (pair[0].equals("queries")) {
+                    if (lastReply().queries > value) {
+                        throw new ScenarioException("prepared " + last.queries + " statements, budget " + value);
+                    }
+                } else {
+                    throw new ScenarioException("bad budget " + limit);
+                }
+            }
+        } else if (directive.equals("check")) {
+            String[] operands = substitute(argument, false).split(" ");
+            if (operands.length != 3 || !operands[1].matches("==|!=")
+                    || operands[1].equals("==") != operands[0].equals(operands[2])) {
+                throw new ScenarioException("check failed: " + substitute(argument, false));
+            }
+        } else if (directive.equals("sleep")) {
+            try {
+                Thread.sleep(Long.parseLong(argument));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            throw new ScenarioException("unknown directive " + directive);
+        }
+    }
+
+    private Instance instance(String name) throws IOException {
+        Instance instance = instances.get(name);
+        if (instance == null) {
+            instance = new Instance();
+            instances.put(name, instance);
+        }
+        return instance;
+    }
+
+    private void receive(Instance instance) throws ScenarioException {
+        checkOutcome();
+        last = instance.receive();
+        outcomeChecked = false;
+        if (last.durationMicros > budgetMicros) {
+            throw new ScenarioException("took " + last.durationMicros + " us, budget " + budgetMicros + " us");
+        }
+    }
+
+    // a reply nobody asserted the outcome of has to be ok
+    private void checkOutcome() throws ScenarioException {
+        if (!outcomeChecked && !last.outcome.equals("ok")) {
+            throw new ScenarioException("outcome " + last.outcome);
+        }
+        outcomeChecked = true;
+    }
+
+    private Reply lastReply() throws ScenarioException {
+        if (last == null) {
+            throw new ScenarioException("no reply yet");
+        }
+        return last;
+    }
+
+    // the first line of the last reply the regex matches a part of, or null
+    private Matcher find(String regex) throws ScenarioException {
+        Pattern pattern = Pattern.compile(substitute(regex, true));
+        for (String line : lastReply().output) {
+            Matcher matcher = pattern.matcher(line);
+            if (matcher.find()) {
+                return matcher;
+            }
+        }
+        return null;
+    }
+
+    // replaces ${name} with the variable, quoted when it goes into a regex
+    private String substitute(String text, boolean regex) throws ScenarioException {
+        Matcher matcher = Pattern.compile("\\$\\{(\\w+)}").matcher(text);
+        StringBuilder result = new StringBuilder();
+        while (matcher.find()) {
+            String value = variables.get(matcher.group(1));
+            if (value == null) {
+                throw new ScenarioException("unknown variable " + matcher.group());
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(regex ? Pattern.quote(value) : value));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // a scheduler process started with the runner's own java and class path
+    private static class Instance {
+        private final Process process;
+        private final BufferedWriter input;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+        Instance() throws IOException {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "scheduler.Scheduler", "--json")
+                    .redirectError(ProcessBuilder.Redirect.INHERIT);
+            // the processes accept each other's session tokens
+            builder.environment().putIfAbsent("SessionSecret", sessionSecret);
+            process = builder.start();
+            input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            Thread reader = new Thread(() -> {
+                try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = output.readLine()) != null) {
+                        replies.add(line);
+                    }
+                } catch (IOException e) {
+                    // the process is gone, a missing reply is reported by receive()
+                }
+            }, "scenario-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(String command) throws IOException {
+            input.write(command);
+            input.newLine();
+            input.flush();
+        }
+
+        Reply receive() throws ScenarioException {
+            try {
+                String line = replies.poll(timeoutSeconds, TimeUnit.SECONDS);
+                if (line == null) {
+                    throw new ScenarioException("no reply within " + timeoutSeconds + " s");
+                }
+                return new Reply(line);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ScenarioException("interrupted");
+            }
+        }
+
+        // the scheduler quits at the end of its input
+        void close() {
+            try {
+                input.close();
+                if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // one JSON line written by Output.endCommand()
+    private static class Reply {
+        private final String json;
+        private final String outcome;
+        private final long durationMicros;
+        private final long queries;
+        private final List<String> output = new ArrayList<>();
+
+        Reply(String json) throws ScenarioException {
+            this.json = json;
+            Map<String, Object> fields = new HashMap<>();
+            try {
+                int i = expect(json, 0, '{');
+                while (json.charAt(i) == '"') {
+                    StringBuilder key = new StringBuilder();
+                    i = expect(json, readString(json, i, key), ':');
+                    if (json.charAt(i) == '[') {
+                        i++;
+                        while (json.charAt(i) == '"') {
+                            StringBuilder message = new StringBuilder();
+                            i = readString(json, i, message);
+                            output.add(message.toString());
+                            if (json.charAt(i) == ',') {
+                                i++;
+                            }
+                        }
+                        i = expect(json, i, ']');
+                    } else if (json.charAt(i) == '"') {
+                        StringBuilder value = new StringBuilder();
+                        i = readString(json, i, value);
+                        fields.put(key.toString(), value.toString());
+                    } else {
+                        int end = i;
+                        while (json.charAt(end) != ',' && json.charAt(end) != '}') {
+                            end++;
+                        }
+                        fields.put(key.toString(), json.substring(i, end));
+                        i = end;
+                    }
+                    if (json.charAt(i) == ',') {
+                        i++;
+                    }
+                }
+                expect(json, i, '}');
+                this.outcome = (String) fields.get("outcome");
+                this.durationMicros = Long.parseLong((String) fields.get("durationMicros"));
+                this.queries = Long.parseLong((String) fields.get("queries"));
+            } catch (RuntimeException e) {
+                throw new ScenarioException("not a command reply: " + json);
+            }
+        }
+
+        private static int expect(String json, int i, char c) {
+            if (json.charAt(i) != c) {
+                throw new IllegalArgumentException("expected " + c + " at " + i);
+            }
+            return i + 1;
+        }
+
+        // reads the string starting at the quote at i into value, returns the index after its closing quote
+        private static int readString(String json, int i, StringBuilder value) {
+            for (i = expect(json, i, '"'); json.charAt(i) != '"'; i++) {
+                char c = json.charAt(i);
+                if (c == '\\') {
+                    c = json.charAt(++i);
+                    switch (c) {
+                        case 'n': value.append('\n'); break;
+                        case 'r': value.append('\r'); break;
+                        case 't': value.append('\t'); break;
+                        case 'b': value.append('\b'); break;
+                        case 'f': value.append('\f'); break;
+                        case 'u': value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16)); i += 4; break;
+                        default: value.append(c);
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            return i + 1;
+        }
+    }
+
+    private static class ScenarioException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ScenarioException(String message) {
+            super(message);
+        }
+    }
+}
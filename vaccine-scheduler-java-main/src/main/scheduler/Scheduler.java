@@ -1,9 +1,20 @@
 package scheduler;
 
+import scheduler.db.Archiver;
+import scheduler.db.AsyncDb;
 import scheduler.db.ConnectionManager;
+import scheduler.db.DatabaseBusyException;
+import scheduler.db.RequestTokens;
 import scheduler.model.Caregiver;
+import scheduler.model.Clinic;
 import scheduler.model.Patient;
 import scheduler.model.Vaccine;
+import scheduler.report.UtilizationReport;
+import scheduler.util.ChangeLog;
+import scheduler.util.EventLog;
+import scheduler.util.Output;
+import scheduler.util.SessionTokens;
+import scheduler.util.SlotBitmap;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
@@ -14,6 +25,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Scheduler {
 
@@ -22,87 +42,286 @@ public class Scheduler {
     //       since only one user can be logged-in at a time
     private static Caregiver currentCaregiver = null;
     private static Patient currentPatient = null;
+    // session token of the current login, when one was issued or resumed
+    private static String currentSessionToken = null;
+
+    // the clinic this session works in, every availability, dose and appointment belongs to one clinic
+    private static String currentClinic = System.getenv("Clinic") != null ? System.getenv("Clinic") : Clinic.DEFAULT_CLINIC;
+    private static final Map<String, Clinic> clinics = new ConcurrentHashMap<>();
+
+    // in-memory aggregates behind the report command, one per clinic, each built from the database once
+    private static final Map<String, UtilizationReport> utilizationReports = new ConcurrentHashMap<>();
+
+    // how often reserve_slot retries when another session grabbed the slot it picked
+    private static final int MAX_SLOT_RETRIES = 5;
+    // how many candidate dates reserve_earliest tries before giving up
+    private static final int MAX_EARLIEST_DATES = 10;
+    // most patients reserve_group books at once
+    private static final int MAX_GROUP_SIZE = 10;
 
     public static void main(String[] args) {
+        // machine-readable mode: one JSON line per command
+        Output.setJson("json".equalsIgnoreCase(System.getenv("OutputFormat"))
+                || (args.length > 0 && args[0].equals("--json")));
+
+        // connect, prepare the login statements and load the utilization report in the
+        // background, the first command waits for nothing that could have been done by now
+        Startup.warmUpInBackground(Scheduler::utilizationReport);
+
+        // move old appointments out of the live tables in the background when configured
+        String archiveAfterDays = System.getenv("ArchiveAfterDays");
+        if (archiveAfterDays != null) {
+            try {
+                new Archiver(Integer.parseInt(archiveAfterDays), Scheduler::onArchived).start();
+            } catch (IllegalArgumentException e) {
+                Output.println("ArchiveAfterDays must be a number of at least 1, archiving is disabled");
+            }
+        }
+
         // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>"); 
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>"); 
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>"); 
-        System.out.println("> reserve <date> <vaccine>"); 
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>"); 
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");
-        System.out.println("> logout"); 
-        System.out.println("> quit");
-        System.out.println();
+        if (!Output.isJson()) {
+            Output.println();
+            Output.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+            Output.println("*** Please enter one of the following commands ***");
+            Output.println("> create_patient <username> <password>"); 
+            Output.println("> create_caregiver <username> <password>");
+            Output.println("> login_patient <username> <password> [--session]");
+            Output.println("> login_caregiver <username> <password> [--session]");
+            Output.println("> resume_session <token>");
+            Output.println("> search_caregiver_schedule <date>"); 
+            Output.println("> reserve <date> <vaccine> [request_token]"); 
+            Output.println("> find_earliest <vaccine> [from_date]");
+            Output.println("> reserve_earliest <vaccine> [from_date]");
+            Output.println("> reserve_group <date> <vaccine> <patient> [patient ...]");
+            Output.println("> upload_availability <date>");
+            Output.println("> upload_slots <date> <start HH:mm> <end HH:mm>");
+            Output.println("> search_slots <date>");
+            Output.println("> reserve_slot <date> <vaccine>");
+            Output.println("> cancel <appointment_id> [request_token]"); 
+            Output.println("> cancel_day <caregiver> <date> [end_date]");
+            Output.println("> add_doses <vaccine> <number> [request_token]");
+            Output.println("> my_calendar <start_date> <end_date>");
+            Output.println("> show_appointments [history]");
+            Output.println("> archive <days>");
+            Output.println("> report");
+            Output.println("> create_clinic <name>");
+            Output.println("> use_clinic <name>");
+            Output.println("> logout"); 
+            Output.println("> quit");
+            Output.println();
+        }
+        Output.flush();
 
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
-            System.out.print("> ");
+            Output.prompt();
             String response = "";
             try {
                 response = r.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
+                Output.println("Please try again!");
+            }
+            // end of input, scripted clients simply close the stream
+            if (response == null) {
+                Output.flush();
+                EventLog.close();
+                return;
             }
             // split the user input by spaces
             String[] tokens = response.split(" ");
             // check if input exists
             if (tokens.length == 0) {
-                System.out.println("Please try again!");
+                Output.println("Please try again!");
                 continue;
             }
             // determine which operation to perform
             String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
-                return;
+            String user = currentUser();
+            long start = System.nanoTime();
+            long queriesBefore = ConnectionManager.queryCount();
+            long errorsBefore = EventLog.errorCount();
+            String outcome = "ok";
+            // a command that cannot get a database connection in time fails with a busy message
+            // instead of blocking the application
+            try {
+                if (operation.equals("create_patient")) {
+                    createPatient(tokens);
+                } else if (operation.equals("create_caregiver")) {
+                    createCaregiver(tokens);
+                } else if (operation.equals("login_patient")) {
+                    loginPatient(tokens);
+                } else if (operation.equals("login_caregiver")) {
+                    loginCaregiver(tokens);
+                } else if (operation.equals("resume_session")) {
+                    resumeSession(tokens);
+                } else if (operation.equals("search_caregiver_schedule")) {
+                    searchCaregiverSchedule(tokens);
+                } else if (operation.equals("reserve")) {
+                    idempotent(tokens, 3, Scheduler::reserve);
+                } else if (operation.equals("find_earliest")) {
+                    findEarliest(tokens);
+                } else if (operation.equals("reserve_earliest")) {
+                    reserveEarliest(tokens);
+                } else if (operation.equals("reserve_group")) {
+                    reserveGroup(tokens);
+                } else if (operation.equals("upload_availability")) {
+                    uploadAvailability(tokens);
+                } else if (operation.equals("upload_slots")) {
+                    uploadSlots(tokens);
+                } else if (operation.equals("search_slots")) {
+                    searchSlots(tokens);
+                } else if (operation.equals("reserve_slot")) {
+                    reserveSlot(tokens);
+                } else if (operation.equals("cancel")) {
+                    idempotent(tokens, 2, Scheduler::cancel);
+                } else if (operation.equals("cancel_day")) {
+                    cancelDay(tokens);
+                } else if (operation.equals("add_doses")) {
+                    idempotent(tokens, 3, Scheduler::addDoses);
+                } else if (operation.equals("my_calendar")) {
+                    myCalendar(tokens);
+                } else if (operation.equals("show_appointments")) {
+                    showAppointments(tokens);
+                } else if (operation.equals("archive")) {
+                    archive(tokens);
+                } else if (operation.equals("report")) {
+                    report(tokens);
+                } else if (operation.equals("create_clinic")) {
+                    createClinic(tokens);
+                } else if (operation.equals("use_clinic")) {
+                    useClinic(tokens);
+                } else if (operation.equals("logout")) {
+                    logout(tokens);
+                } else if (operation.equals("quit")) {
+                    Output.println("Bye!");
+                    long durationMicros = (System.nanoTime() - start) / 1000;
+                    long queries = ConnectionManager.queryCount() - queriesBefore;
+                    EventLog.command(operation, user, durationMicros, queries, outcome);
+                    Output.endCommand(operation, user, durationMicros, queries, outcome);
+                    EventLog.close();
+                    return;
+                } else {
+                    Output.println("Invalid operation name!");
+                }
+            } catch (DatabaseBusyException e) {
+                Output.println(e.getMessage());
+                outcome = "busy";
+            }
+            if (outcome.equals("ok") && EventLog.errorCount() != errorsBefore) {
+                outcome = "error";
+            }
+            if (user == null) {
+                user = currentUser();
+            }
+            long durationMicros = (System.nanoTime() - start) / 1000;
+            long queries = ConnectionManager.queryCount() - queriesBefore;
+            EventLog.command(operation, user, durationMicros, queries, outcome);
+            Output.endCommand(operation, user, durationMicros, queries, outcome);
+        }
+    }
+
+    private static String currentUser() {
+        if (currentCaregiver != null) {
+            return currentCaregiver.getUsername();
+        } else if (currentPatient != null) {
+            return currentPatient.getUsername();
+        }
+        return null;
+    }
+
+    // a command that tells whether it committed a change to the database
+    @FunctionalInterface
+    private interface Command {
+        boolean run(String[] tokens);
+    }
+
+    // reserve, cancel and add_doses take an optional client request token after their arguments,
+    // the token is claimed before the command runs and a retry with the same token prints the
+    // recorded output of the first attempt instead of running the command again
+    private static void idempotent(String[] tokens, int length, Command command) {
+        String user = currentUser();
+        if (tokens.length != length + 1 || user == null) {
+            command.run(tokens);
+            return;
+        }
+        String requestToken = tokens[length];
+        RequestTokens.Result previous;
+        try {
+            previous = RequestTokens.claim(user, requestToken, tokens[0]);
+        } catch (SQLException e) {
+            // running the command without knowing whether it already ran could book twice
+            Output.println("Error occurred when checking the request token");
+            EventLog.error(e);
+            return;
+        }
+        if (previous != null) {
+            if (!previous.getCommand().equals(tokens[0])) {
+                Output.println("Request token already used for another command!");
+            } else if (previous.isPending()) {
+                Output.println("Request is in progress, please retry later!");
             } else {
-                System.out.println("Invalid operation name!");
+                for (String line : previous.getOutput().split("\n")) {
+                    Output.println(line);
+                }
+            }
+            return;
+        }
+        boolean committed = false;
+        String output;
+        Output.startCapture();
+        try {
+            committed = command.run(Arrays.copyOf(tokens, length));
+        } finally {
+            output = Output.stopCapture();
+            if (!committed) {
+                // nothing was written, give up the claim so the request can be retried with the same
+                // token, also when the database was busy and the exception is on its way to the main loop
+                abandon(user, requestToken);
             }
         }
+        if (!committed) {
+            return;
+        }
+        // once the change is committed the result is recorded, whatever was logged along the way,
+        // a retry must never run the command a second time
+        try {
+            RequestTokens.complete(user, requestToken, tokens[0], output);
+        } catch (SQLException | DatabaseBusyException e) {
+            EventLog.error(e);
+        }
+    }
+
+    // bookkeeping after a commit, the change is in the database already, so a busy database while the
+    // utilization report is loaded must not make the command look failed, the report loads on its next use
+    private static void afterCommit(Runnable update) {
+        try {
+            update.run();
+        } catch (DatabaseBusyException e) {
+            EventLog.error(e);
+        }
+    }
+
+    private static void abandon(String user, String requestToken) {
+        try {
+            RequestTokens.abandon(user, requestToken);
+        } catch (SQLException | DatabaseBusyException e) {
+            // the claim is taken over once it timed out
+            EventLog.error(e);
+        }
     }
 
     private static void createPatient(String[] tokens) {
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            Output.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         if (validatePassword(password)){
             if (usernameExistsPatient(username)) {
-                System.out.println("Username taken, try again!");
+                Output.println("Username taken, try again!");
                 return;
             }
             byte[] salt = Util.generateSalt();
@@ -110,19 +329,19 @@ public class Scheduler {
             try {
                 Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
                 patient.saveToDB();
-                System.out.println("Created user " + username);
+                Output.println("Created user " + username);
             } catch (SQLException e) {
-                System.out.println("Failed to create user.");
-                e.printStackTrace();
+                Output.println("Failed to create user.");
+                EventLog.error(e);
             }
         }
         else{
-            System.out.println("- Password must be at least 8 characters long");
-            System.out.println("- Must include at least one character from each of the following types:");
-            System.out.println("  - Uppercase letters (A-Z)");
-            System.out.println("  - Lowercase letters (a-z)");
-            System.out.println("  - Numbers (0-9)");
-            System.out.println("  - Special characters (e.g., !@#$%^&*()_+-=[]{}|;':\",.<>?/)");
+            Output.println("- Password must be at least 8 characters long");
+            Output.println("- Must include at least one character from each of the following types:");
+            Output.println("  - Uppercase letters (A-Z)");
+            Output.println("  - Lowercase letters (a-z)");
+            Output.println("  - Numbers (0-9)");
+            Output.println("  - Special characters (e.g., !@#$%^&*()_+-=[]{}|;':\",.<>?/)");
             return;
         }
     }
@@ -131,14 +350,14 @@ public class Scheduler {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            Output.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            Output.println("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -148,10 +367,10 @@ public class Scheduler {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            Output.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+            Output.println("Failed to create user.");
+            EventLog.error(e);
         }
     }
 
@@ -167,8 +386,8 @@ public class Scheduler {
             // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
             return resultSet.isBeforeFirst();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
+            Output.println("Error occurred when checking username");
+            EventLog.error(e);
         } finally {
             cm.closeConnection();
         }
@@ -186,8 +405,8 @@ public class Scheduler {
             ResultSet resultSet = statement.executeQuery();
             return resultSet.isBeforeFirst();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
+            Output.println("Error occurred when checking username");
+            EventLog.error(e);
         } finally {
             cm.closeConnection();
         }
@@ -195,15 +414,17 @@ public class Scheduler {
     }
 
     private static void loginPatient(String[] tokens) {
-        // login_patient <username> <password>
+        // login_patient <username> <password> [--session]
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            Output.println("User already logged in.");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+        // check 2: the length for tokens need to be 3 to include all information (with the operation name),
+        //          or 4 to also ask for a session token
+        boolean issueSession = tokens.length == 4 && tokens[3].equals("--session");
+        if (tokens.length != 3 && !issueSession) {
+            Output.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -213,28 +434,33 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            Output.println("Login failed.");
+            EventLog.error(e);
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login failed.");
+            Output.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            Output.println("Logged in as: " + username);
             currentPatient = patient;
+            if (issueSession) {
+                issueSessionToken(username, SessionTokens.PATIENT);
+            }
         }
     }
 
     private static void loginCaregiver(String[] tokens) {
-        // login_caregiver <username> <password>
+        // login_caregiver <username> <password> [--session]
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            Output.println("User already logged in.");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+        // check 2: the length for tokens need to be 3 to include all information (with the operation name),
+        //          or 4 to also ask for a session token
+        boolean issueSession = tokens.length == 4 && tokens[3].equals("--session");
+        if (tokens.length != 3 && !issueSession) {
+            Output.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -244,135 +470,470 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            Output.println("Login failed.");
+            EventLog.error(e);
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            Output.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            Output.println("Logged in as: " + username);
             currentCaregiver = caregiver;
+            if (issueSession) {
+                issueSessionToken(username, SessionTokens.CAREGIVER);
+            }
         }
     }
 
+    private static void issueSessionToken(String username, String role) {
+        if (!SessionTokens.isEnabled()) {
+            Output.println("Session tokens are not enabled!");
+            return;
+        }
+        currentSessionToken = SessionTokens.issue(username, role);
+        Output.println("Session token: " + currentSessionToken);
+    }
+
+    private static void resumeSession(String[] tokens) {
+        // resume_session <token>
+        // check 1: if someone's already logged-in, they need to log out first
+        if (currentCaregiver != null || currentPatient != null) {
+            Output.println("User already logged in.");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            Output.println("Please try again!");
+            return;
+        }
+        // only the signature is checked, the user is not looked up in the database again
+        SessionTokens.Session session = SessionTokens.verify(tokens[1]);
+        if (session == null) {
+            Output.println("Session expired or invalid, please login again.");
+            return;
+        }
+        if (session.getRole().equals(SessionTokens.PATIENT)) {
+            currentPatient = new Patient.PatientBuilder(session.getUsername(), null, null).build();
+        } else {
+            currentCaregiver = new Caregiver.CaregiverBuilder(session.getUsername(), null, null).build();
+        }
+        currentSessionToken = tokens[1];
+        Output.println("Logged in as: " + session.getUsername());
+    }
+
     private static void searchCaregiverSchedule(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null ) {
-            System.out.println("Please login first!");
+            Output.println("Please login first!");
             return;
         } else if (currentCaregiver != null) {
-            System.out.println("welcome doctor, here is the schedule!");
+            Output.println("welcome doctor, here is the schedule!");
         } else {
-            System.out.println("welcome our patients, here is the schedule!");
+            Output.println("welcome our patients, here is the schedule!");
         }
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            Output.println("Please try again!");
             return;
         }
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String availableCaregivers = "SELECT C.Username FROM Caregivers C, Availabilities A WHERE A.Time = ? AND C.Username = A.Username GROUP BY C.Username ORDER BY C.Username ASC";
-        String availableVaccine = "SELECT Name, Doses FROM Vaccines";
+        // the caregiver and vaccine queries are independent, so they run in parallel
+        CompletableFuture<List<String>> caregiversFuture = findAvailableCaregiversAsync(tokens[1], currentClinic);
+        CompletableFuture<List<Vaccine>> vaccinesFuture = findVaccinesAsync(currentClinic);
         try {
-            PreparedStatement statement1 = con.prepareStatement(availableCaregivers);
-            statement1.setString(1, tokens[1]);
-            ResultSet result1 = statement1.executeQuery();
-            PreparedStatement statement2 = con.prepareStatement(availableVaccine);
-            ResultSet result2 = statement2.executeQuery();
-            //System.out.println(result1);
-            if(result1.isBeforeFirst()) {
-                System.out.print("Available Caregivers: ");
-                while (result1.next()) { // if there is caregiver available, show vaccines
-                    System.out.print(result1.getString(1) + " ");
+            List<String> caregivers = AsyncDb.join(caregiversFuture);
+            if (!caregivers.isEmpty()) {
+                Output.print("Available Caregivers: ");
+                for (String caregiver : caregivers) { // if there is caregiver available, show vaccines
+                    Output.print(caregiver + " ");
                 }
-                System.out.print("\n");
-                while (result2.next()){
-                    System.out.println("Vaccines: " + result2.getString("Name") + " Available Doses: " + result2.getString("Doses"));
+                Output.println();
+                for (Vaccine vaccine : AsyncDb.join(vaccinesFuture)) {
+                    Output.println("Vaccines: " + vaccine.getVaccineName() + " Available Doses: " + vaccine.getAvailableDoses());
                 }
             }
             else {
-                System.out.println("No available caregiver!");
+                Output.println("No available caregiver!");
             }
         } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            EventLog.error(e);
         }
 
     }
 
-    private static void reserve(String[] tokens) {
+    private static CompletableFuture<List<String>> findAvailableCaregiversAsync(String date, String clinic) {
+        return AsyncDb.supply(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createReadConnection();
+            String availableCaregivers = "SELECT C.Username FROM Caregivers C, Availabilities A WHERE A.Time = ? AND A.Clinic = ? AND C.Username = A.Username GROUP BY C.Username ORDER BY C.Username ASC";
+            try {
+                PreparedStatement statement = con.prepareStatement(availableCaregivers);
+                statement.setString(1, date);
+                statement.setString(2, clinic);
+                ResultSet result = statement.executeQuery();
+                List<String> caregivers = new ArrayList<>();
+                while (result.next()) {
+                    caregivers.add(result.getString(1));
+                }
+                return caregivers;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    private static CompletableFuture<List<Vaccine>> findVaccinesAsync(String clinic) {
+        return AsyncDb.supply(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createReadConnection();
+            String availableVaccine = "SELECT Name, Doses FROM Vaccines WHERE Clinic = ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(availableVaccine);
+                statement.setString(1, clinic);
+                ResultSet result = statement.executeQuery();
+                List<Vaccine> vaccines = new ArrayList<>();
+                while (result.next()) {
+                    vaccines.add(new Vaccine.VaccineBuilder(result.getString("Name"), result.getInt("Doses"), clinic).build());
+                }
+                return vaccines;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // returns whether the booking was committed
+    private static boolean reserve(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");//no one login
-            return;
+            Output.println("Please login first!");//no one login
+            return false;
         } else if (currentCaregiver != null) {
-            System.out.println("Please login as a patient!");//doctor login
-            return;
+            Output.println("Please login as a patient!");//doctor login
+            return false;
         }
         if (tokens.length != 3) {
-            System.out.println("Please try again!");//wrong input
-            return;
+            Output.println("Please try again!");//wrong input
+            return false;
         }
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
-        String caregiver_reserve = "SELECT A.Username FROM Availabilities AS A WHERE A.Time = ? ORDER BY A.Username ASC";//check if there is caregiver available
-        String vaccine_reserve = "SELECT Name, Doses FROM Vaccines WHERE Vaccines.Name = ?";//check if there is vaccine available
+        // READPAST skips caregivers another instance is booking right now, UPDLOCK keeps the one we pick
+        // ours until commit, the conditional delete below still decides who really got them
+        String caregiver_reserve = "SELECT TOP 1 A.Username FROM Availabilities AS A WITH (UPDLOCK, READPAST) WHERE A.Time = ? AND A.Clinic = ? ORDER BY A.Username ASC";//check if there is caregiver available
+        String vaccine_reserve = "SELECT Name, Doses FROM Vaccines WHERE Vaccines.Name = ? AND Vaccines.Clinic = ?";//check if there is vaccine available
+        String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ? AND Clinic = ?";
+        String deleteSlots = "DELETE FROM AvailabilitySlots WHERE Username = ? AND Time = ? AND Clinic = ?";
+        // relative and conditional, so concurrent bookings on other instances cannot overwrite each other's count
+        String useDose = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Clinic = ? AND Doses > 0";
+        String appointment = "INSERT INTO Appointments (ID, C_name, P_name, V_name, Time, Clinic) VALUES (?, ?, ?, ?, ?, ?)";
         try {
+            // everything below is one transaction, a booking that fails half way leaves nothing behind
+            con.setAutoCommit(false);
             PreparedStatement statement1 = con.prepareStatement(caregiver_reserve);
             statement1.setString(1, tokens[1]);
+            statement1.setString(2, currentClinic);
             ResultSet result1 = statement1.executeQuery();
 
             PreparedStatement statement2 = con.prepareStatement(vaccine_reserve);
             statement2.setString(1, tokens[2]);
+            statement2.setString(2, currentClinic);
             ResultSet result2 = statement2.executeQuery();
 
-            Boolean existCaregiver = result1.next();
-            Boolean existVaccine = result2.next();
-            if (result2.getInt("Doses") <= 0) {
-                existVaccine = false;
-            }
-            if (existCaregiver && existVaccine) {
-                String reservedID = "SELECT ID FROM Appointments";//get the last ID
-                PreparedStatement IdStatement = con.prepareStatement(reservedID);
-                ResultSet lastID = IdStatement.executeQuery();
-                int id=1;
-                if (lastID.isBeforeFirst()) {
-                    while (lastID.next()){
-                        id = lastID.getInt("ID");
-                    }
-                    id = id+1;
+            boolean existCaregiver = result1.next();
+            boolean existVaccine = result2.next() && result2.getInt("Doses") > 0;
+            if (!existCaregiver) {//no available caregiver
+                con.rollback();
+                Output.println("No available caregiver!");
+                return false;
+            }
+            if (!existVaccine) {//no available doses
+                con.rollback();
+                Output.println("No available vaccine!");
+                return false;
+            }
+            String caregiverReserved = result1.getString(1);
+            // delete date availability of caregiver, only one booking can take the row
+            PreparedStatement dStatement = con.prepareStatement(deleteAvailability);
+            dStatement.setString(1, caregiverReserved);
+            dStatement.setString(2, tokens[1]);
+            dStatement.setString(3, currentClinic);
+            if (dStatement.executeUpdate() != 1) {
+                con.rollback();
+                Output.println("No available caregiver!");
+                return false;
+            }
+            // the caregiver's whole day is taken, so their slots of that day are gone as well
+            PreparedStatement slotsStatement = con.prepareStatement(deleteSlots);
+            slotsStatement.setString(1, caregiverReserved);
+            slotsStatement.setString(2, tokens[1]);
+            slotsStatement.setString(3, currentClinic);
+            slotsStatement.executeUpdate();
+            // update vaccine doses value, another session may have taken the last dose since we read it
+            PreparedStatement doseStatement = con.prepareStatement(useDose);
+            doseStatement.setString(1, tokens[2]);
+            doseStatement.setString(2, currentClinic);
+            if (doseStatement.executeUpdate() == 0) {
+                con.rollback();
+                Output.println("No available vaccine!");
+                return false;
+            }
+            int id = clinic().nextAppointmentId(con); // next ID in the clinic's own ID range
+            // create a new appointment
+            PreparedStatement updateStatement = con.prepareStatement(appointment);
+            updateStatement.setInt(1, id); // id
+            updateStatement.setString(2, caregiverReserved); // caregiver
+            updateStatement.setString(3, currentPatient.getUsername()); // patient
+            updateStatement.setString(4, tokens[2]); // vaccine
+            updateStatement.setString(5, tokens[1]); // date
+            updateStatement.setString(6, currentClinic); // clinic
+            updateStatement.executeUpdate();
+            con.commit();
+            ConnectionManager.recordWrite();
+            afterCommit(() -> utilizationReport().onReserve(tokens[1], caregiverReserved, tokens[2]));
+            ChangeLog.booked(id, caregiverReserved, currentPatient.getUsername(), tokens[2], tokens[1], currentClinic);
+            Output.println("Appointment ID: " + id);
+            Output.println("Caregiver username: " + caregiverReserved);
+            return true;
+        } catch (SQLException e) {
+            rollback(con);
+            EventLog.error(e);
+        } finally {
+            cm.closeConnection();
+        }
+        return false;
+    }
+
+    private static void findEarliest(String[] tokens) {
+        // find_earliest <vaccine> [from_date]
+        if (currentCaregiver == null && currentPatient == null) {
+            Output.println("Please login first!");
+            return;
+        }
+        if (tokens.length != 2 && tokens.length != 3) {
+            Output.println("Please try again!");
+            return;
+        }
+        String from;
+        try {
+            from = tokens.length == 3 ? Date.valueOf(tokens[2]).toString() : LocalDate.now().toString();
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        // answered from the in-memory date index, no database access needed
+        if (utilizationReport().dosesRemaining(tokens[1]) <= 0) {
+            Output.println("No available vaccine!");
+            return;
+        }
+        String date = utilizationReport().earliestAvailableDate(from);
+        if (date == null) {
+            Output.println("No available caregiver!");
+        } else {
+            Output.println("Earliest available date: " + date);
+        }
+    }
+
+    private static void reserveEarliest(String[] tokens) {
+        // reserve_earliest <vaccine> [from_date]
+        if (currentCaregiver == null && currentPatient == null) {
+            Output.println("Please login first!");
+            return;
+        } else if (currentCaregiver != null) {
+            Output.println("Please login as a patient!");
+            return;
+        }
+        if (tokens.length != 2 && tokens.length != 3) {
+            Output.println("Please try again!");
+            return;
+        }
+        String vaccineName = tokens[1];
+        String from;
+        try {
+            from = tokens.length == 3 ? Date.valueOf(tokens[2]).toString() : LocalDate.now().toString();
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        // skip caregivers another session is booking right now instead of waiting for them
+        String findCaregiver = "SELECT TOP 1 Username FROM Availabilities WITH (UPDLOCK, READPAST) WHERE Time = ? AND Clinic = ? ORDER BY Username ASC";
+        String useDose = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Clinic = ? AND Doses > 0";
+        String appointment = "INSERT INTO Appointments (ID, C_name, P_name, V_name, Time, Clinic) VALUES (?, ?, ?, ?, ?, ?)";
+        String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ? AND Clinic = ?";
+        String deleteSlots = "DELETE FROM AvailabilitySlots WHERE Username = ? AND Time = ? AND Clinic = ?";
+        try {
+            con.setAutoCommit(false);
+            String date = utilizationReport().earliestAvailableDate(from);
+            // the index may be behind other scheduler instances, so move on to the next date
+            // if the one it points to turns out to be taken already
+            for (int attempt = 0; date != null && attempt < MAX_EARLIEST_DATES; attempt++) {
+                Date d = Date.valueOf(date);
+                PreparedStatement statement1 = con.prepareStatement(findCaregiver);
+                statement1.setDate(1, d);
+                statement1.setString(2, currentClinic);
+                ResultSet result1 = statement1.executeQuery();
+                if (!result1.next()) {
+                    date = utilizationReport().nextAvailableDate(date);
+                    continue;
                 }
-                // create a new appointment
-                //Date date = Date.valueOf(tokens[1]);
                 String caregiverReserved = result1.getString(1);
-                String appointment = "INSERT INTO Appointments VALUES (?, ?, ?, ?, ?)";
-                PreparedStatement updateStatement = con.prepareStatement(appointment);
-                updateStatement.setString(1, Integer.toString(id)); // id
-                updateStatement.setString(2, caregiverReserved); // caregiver
-                updateStatement.setString(3, currentPatient.getUsername()); // patient
-                updateStatement.setString(4, tokens[2]); // vaccine
-                updateStatement.setString(5, tokens[1]); // date
-                updateStatement.executeUpdate();
-                // update vaccine doses value
-                Vaccine vaccine = new Vaccine.VaccineGetter(tokens[2]).get();
-                vaccine.decreaseAvailableDoses(1);
-                // delete date availability of caregiver
-                String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ?";
-                PreparedStatement dStatement = con.prepareStatement(deleteAvailability);
-                dStatement.setString(1, caregiverReserved);
-                dStatement.setString(2, tokens[1]);
-                dStatement.executeUpdate();
-                System.out.println("Appointment ID: " + id);
-                System.out.println("Caregiver username: " + caregiverReserved);
-            }
-            else if (!existCaregiver){//no available caregiver
-                System.out.println("No available caregiver!");
-            }
-            else {//no available doses
-                System.out.println("No available vaccine!");
+                PreparedStatement statement2 = con.prepareStatement(useDose);
+                statement2.setString(1, vaccineName);
+                statement2.setString(2, currentClinic);
+                if (statement2.executeUpdate() == 0) {
+                    con.rollback();
+                    Output.println("No available vaccine!");
+                    return;
+                }
+                int id = clinic().nextAppointmentId(con);
+                PreparedStatement statement4 = con.prepareStatement(appointment);
+                statement4.setInt(1, id); // id
+                statement4.setString(2, caregiverReserved); // caregiver
+                statement4.setString(3, currentPatient.getUsername()); // patient
+                statement4.setString(4, vaccineName); // vaccine
+                statement4.setDate(5, d); // date
+                statement4.setString(6, currentClinic); // clinic
+                statement4.executeUpdate();
+                PreparedStatement statement5 = con.prepareStatement(deleteAvailability);
+                statement5.setString(1, caregiverReserved);
+                statement5.setDate(2, d);
+                statement5.setString(3, currentClinic);
+                statement5.executeUpdate();
+                // the caregiver's whole day is taken, so their slots of that day are gone as well
+                PreparedStatement statement6 = con.prepareStatement(deleteSlots);
+                statement6.setString(1, caregiverReserved);
+                statement6.setDate(2, d);
+                statement6.setString(3, currentClinic);
+                statement6.executeUpdate();
+                con.commit();
+                ConnectionManager.recordWrite();
+                utilizationReport().onReserve(date, caregiverReserved, vaccineName);
+                ChangeLog.booked(id, caregiverReserved, currentPatient.getUsername(), vaccineName, date, currentClinic);
+                Output.println("Appointment ID: " + id);
+                Output.println("Caregiver username: " + caregiverReserved);
+                Output.println("Date: " + date);
+                return;
             }
+            con.rollback();
+            Output.println("No available caregiver!");
         } catch (SQLException e) {
-            e.printStackTrace();
+            rollback(con);
+            EventLog.error(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void reserveGroup(String[] tokens) {
+        // reserve_group <date> <vaccine> <patient> [patient ...]
+        // books one appointment per patient on the same date, each with a different caregiver,
+        // in a single transaction: either the whole household is booked or nobody is
+        if (currentCaregiver == null && currentPatient == null) {
+            Output.println("Please login first!");
+            return;
+        } else if (currentCaregiver != null) {
+            Output.println("Please login as a patient!");
+            return;
+        }
+        if (tokens.length < 4 || tokens.length - 3 > MAX_GROUP_SIZE) {
+            Output.println("Please try again!");
+            return;
+        }
+        Date d;
+        try {
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        String vaccineName = tokens[2];
+        List<String> patients = Arrays.asList(tokens).subList(3, tokens.length);
+        if (patients.stream().distinct().count() != patients.size()) {
+            Output.println("Every patient can only be listed once!");
+            return;
+        }
+        // a patient can only book for a group they belong to
+        if (!patients.contains(currentPatient.getUsername())) {
+            Output.println("You can only reserve for a group you are part of!");
+            return;
+        }
+        int size = patients.size();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        // skip caregivers another session is booking right now instead of waiting for them
+        String findCaregivers = "SELECT TOP (?) Username FROM Availabilities WITH (UPDLOCK, READPAST) WHERE Time = ? AND Clinic = ? ORDER BY Username ASC";
+        String useDoses = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Clinic = ? AND Doses >= ?";
+        String appointment = "INSERT INTO Appointments (ID, C_name, P_name, V_name, Time, Clinic) VALUES (?, ?, ?, ?, ?, ?)";
+        String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ? AND Clinic = ?";
+        String deleteSlots = "DELETE FROM AvailabilitySlots WHERE Username = ? AND Time = ? AND Clinic = ?";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement1 = con.prepareStatement(findCaregivers);
+            statement1.setInt(1, size);
+            statement1.setDate(2, d);
+            statement1.setString(3, currentClinic);
+            ResultSet result1 = statement1.executeQuery();
+            List<String> caregivers = new ArrayList<>();
+            while (result1.next()) {
+                caregivers.add(result1.getString(1));
+            }
+            if (caregivers.size() < size) {
+                con.rollback();
+                Output.println("Not enough available caregivers for the group!");
+                return;
+            }
+            PreparedStatement statement2 = con.prepareStatement(useDoses);
+            statement2.setInt(1, size);
+            statement2.setString(2, vaccineName);
+            statement2.setString(3, currentClinic);
+            statement2.setInt(4, size);
+            if (statement2.executeUpdate() == 0) {
+                con.rollback();
+                Output.println("Not enough available vaccine for the group!");
+                return;
+            }
+            // the appointments and the availability deletes each go out as one batch, a caregiver's
+            // whole day is taken, so their slots of that day are gone as well
+            int[] ids = new int[size];
+            PreparedStatement statement3 = con.prepareStatement(appointment);
+            PreparedStatement statement4 = con.prepareStatement(deleteAvailability);
+            PreparedStatement statement5 = con.prepareStatement(deleteSlots);
+            int firstId = clinic().nextAppointmentIds(con, size);
+            for (int i = 0; i < size; i++) {
+                ids[i] = firstId + i;
+                statement3.setInt(1, ids[i]); // id
+                statement3.setString(2, caregivers.get(i)); // caregiver
+                statement3.setString(3, patients.get(i)); // patient
+                statement3.setString(4, vaccineName); // vaccine
+                statement3.setDate(5, d); // date
+                statement3.setString(6, currentClinic); // clinic
+                statement3.addBatch();
+                statement4.setString(1, caregivers.get(i));
+                statement4.setDate(2, d);
+                statement4.setString(3, currentClinic);
+                statement4.addBatch();
+                statement5.setString(1, caregivers.get(i));
+                statement5.setDate(2, d);
+                statement5.setString(3, currentClinic);
+                statement5.addBatch();
+            }
+            statement3.executeBatch();
+            statement4.executeBatch();
+            statement5.executeBatch();
+            con.commit();
+            ConnectionManager.recordWrite();
+            for (int i = 0; i < size; i++) {
+                utilizationReport().onReserve(tokens[1], caregivers.get(i), vaccineName);
+                ChangeLog.booked(ids[i], caregivers.get(i), patients.get(i), vaccineName, tokens[1], currentClinic);
+                Output.println("Appointment ID: " + ids[i] + " Patient: " + patients.get(i) + " Caregiver: " + caregivers.get(i));
+            }
+        } catch (SQLException e) {
+            rollback(con);
+            // foreign key violation: one of the patients does not exist
+            if (e.getErrorCode() == 547) {
+                Output.println("Unknown patient in the group, nobody was booked!");
+            } else {
+                Output.println("Error occurred when reserving, nobody was booked!");
+                EventLog.error(e);
+            }
         } finally {
             cm.closeConnection();
         }
@@ -382,168 +943,615 @@ public class Scheduler {
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            Output.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            Output.println("Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (!currentCaregiver.uploadAvailability(d, currentClinic)) {
+                Output.println("You already have slot appointments on this day, please upload slots instead!");
+                return;
+            }
+            ConnectionManager.recordWrite();
+            utilizationReport().onAvailabilityUploaded(d);
+            Output.println("Availability uploaded!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            Output.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
-            e.printStackTrace();
+            Output.println("Error occurred when uploading availability");
+            EventLog.error(e);
         }
     }
 
-    private static void cancel(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null ) {
-            System.out.println("Please login first!");
+    private static void uploadSlots(String[] tokens) {
+        // upload_slots <date> <start HH:mm> <end HH:mm>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            Output.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 4 to include all information (with the operation name)
+        if (tokens.length != 4) {
+            Output.println("Please try again!");
+            return;
+        }
+        try {
+            Date d = Date.valueOf(tokens[1]);
+            // the caregiver is only offered for the time they gave, so no rounding to a slot
+            int fromSlot = SlotBitmap.boundaryOf(tokens[2]);
+            int toSlot = SlotBitmap.boundaryOf(tokens[3]);
+            if (fromSlot == -1 || toSlot == -1) {
+                Output.println("Times must be on the quarter hour, e.g. 09:15!");
+                return;
+            }
+            if (fromSlot >= toSlot) {
+                Output.println("Start time must be before end time!");
+                return;
+            }
+            if (!currentCaregiver.uploadSlots(d, currentClinic, fromSlot, toSlot)) {
+                Output.println("You are already booked for the whole day!");
+                return;
+            }
+            ConnectionManager.recordWrite();
+            Output.println("Availability uploaded!");
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+        } catch (DateTimeParseException e) {
+            Output.println("Please enter a valid time!");
+        } catch (SQLException e) {
+            Output.println("Error occurred when uploading availability");
+            EventLog.error(e);
+        }
+    }
+
+    private static void searchSlots(String[] tokens) {
+        // search_slots <date>
+        if (currentCaregiver == null && currentPatient == null) {
+            Output.println("Please login first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            Output.println("Please try again!");
+            return;
+        }
+        Date d;
+        try {
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createReadConnection();
+        String getSlots = "SELECT Slots FROM AvailabilitySlots WHERE Time = ? AND Clinic = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(getSlots);
+            statement.setDate(1, d);
+            statement.setString(2, currentClinic);
+            ResultSet result = statement.executeQuery();
+            // a slot is free if any caregiver has it free
+            SlotBitmap free = new SlotBitmap();
+            while (result.next()) {
+                free.or(SlotBitmap.fromBytes(result.getBytes(1)));
+            }
+            int first = free.firstSetSlot();
+            if (first == -1) {
+                Output.println("No available caregiver!");
+            } else {
+                Output.println("First free slot: " + SlotBitmap.timeOf(first));
+                Output.println("Free slots: " + free.cardinality());
+            }
+        } catch (SQLException e) {
+            EventLog.error(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void reserveSlot(String[] tokens) {
+        // reserve_slot <date> <vaccine>
+        if (currentCaregiver == null && currentPatient == null) {
+            Output.println("Please login first!");
             return;
         } else if (currentCaregiver != null) {
-            System.out.println("welcome doctor, you are going to cancel an appointment!");
+            Output.println("Please login as a patient!");
+            return;
+        }
+        if (tokens.length != 3) {
+            Output.println("Please try again!");
+            return;
+        }
+        Date d;
+        try {
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String getSlots = "SELECT Username, Slots FROM AvailabilitySlots WHERE Time = ? AND Clinic = ? ORDER BY Username ASC";
+        // compare-and-set, fails if another session changed the bitmap after we read it
+        String claimSlot = "UPDATE AvailabilitySlots SET Slots = ? WHERE Time = ? AND Username = ? AND Clinic = ? AND Slots = ?";
+        String useDose = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Clinic = ? AND Doses > 0";
+        String appointment = "INSERT INTO Appointments (ID, C_name, P_name, V_name, Time, Slot, Clinic) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        // a caregiver with a slot booking cannot be booked for the whole day anymore
+        String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ? AND Clinic = ?";
+        try {
+            con.setAutoCommit(false);
+            for (int attempt = 0; attempt < MAX_SLOT_RETRIES; attempt++) {
+                PreparedStatement statement1 = con.prepareStatement(getSlots);
+                statement1.setDate(1, d);
+                statement1.setString(2, currentClinic);
+                ResultSet result1 = statement1.executeQuery();
+                List<String> caregivers = new ArrayList<>();
+                List<byte[]> bitmaps = new ArrayList<>();
+                SlotBitmap free = new SlotBitmap();
+                while (result1.next()) {
+                    caregivers.add(result1.getString(1));
+                    bitmaps.add(result1.getBytes(2));
+                    free.or(SlotBitmap.fromBytes(result1.getBytes(2)));
+                }
+                int slot = free.firstSetSlot();
+                if (slot == -1) {
+                    con.rollback();
+                    Output.println("No available caregiver!");
+                    return;
+                }
+                // the first caregiver (by username) that has the earliest slot free gets it
+                int chosen = 0;
+                while (!SlotBitmap.fromBytes(bitmaps.get(chosen)).get(slot)) {
+                    chosen++;
+                }
+                String caregiverReserved = caregivers.get(chosen);
+                SlotBitmap remaining = SlotBitmap.fromBytes(bitmaps.get(chosen));
+                remaining.clear(slot);
+                PreparedStatement statement2 = con.prepareStatement(claimSlot);
+                statement2.setBytes(1, remaining.toBytes());
+                statement2.setDate(2, d);
+                statement2.setString(3, caregiverReserved);
+                statement2.setString(4, currentClinic);
+                statement2.setBytes(5, bitmaps.get(chosen));
+                if (statement2.executeUpdate() == 0) {
+                    // somebody else took it, look again
+                    con.rollback();
+                    continue;
+                }
+                PreparedStatement statement3 = con.prepareStatement(useDose);
+                statement3.setString(1, tokens[2]);
+                statement3.setString(2, currentClinic);
+                if (statement3.executeUpdate() == 0) {
+                    con.rollback();
+                    Output.println("No available vaccine!");
+                    return;
+                }
+                int id = clinic().nextAppointmentId(con);
+                PreparedStatement statement5 = con.prepareStatement(appointment);
+                statement5.setInt(1, id); // id
+                statement5.setString(2, caregiverReserved); // caregiver
+                statement5.setString(3, currentPatient.getUsername()); // patient
+                statement5.setString(4, tokens[2]); // vaccine
+                statement5.setDate(5, d); // date
+                statement5.setInt(6, slot); // slot
+                statement5.setString(7, currentClinic); // clinic
+                statement5.executeUpdate();
+                PreparedStatement statement6 = con.prepareStatement(deleteAvailability);
+                statement6.setString(1, caregiverReserved);
+                statement6.setDate(2, d);
+                statement6.setString(3, currentClinic);
+                boolean dayTaken = statement6.executeUpdate() == 1;
+                con.commit();
+                ConnectionManager.recordWrite();
+                utilizationReport().onSlotReserve(tokens[1], caregiverReserved, tokens[2], dayTaken);
+                ChangeLog.booked(id, caregiverReserved, currentPatient.getUsername(), tokens[2], tokens[1], currentClinic);
+                Output.println("Appointment ID: " + id);
+                Output.println("Caregiver username: " + caregiverReserved);
+                Output.println("Time: " + SlotBitmap.timeOf(slot));
+                return;
+            }
+            Output.println("Please try again!");
+        } catch (SQLException e) {
+            rollback(con);
+            EventLog.error(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // set the slot bit of the caregiver's bitmap again, retrying if another session changed it meanwhile
+    private static void releaseSlot(Connection con, Date d, String caregiver, String clinic, int slot) throws SQLException {
+        String getSlots = "SELECT Slots FROM AvailabilitySlots WHERE Time = ? AND Username = ? AND Clinic = ?";
+        String updateSlots = "UPDATE AvailabilitySlots SET Slots = ? WHERE Time = ? AND Username = ? AND Clinic = ? AND Slots = ?";
+        while (true) {
+            PreparedStatement statement = con.prepareStatement(getSlots);
+            statement.setDate(1, d);
+            statement.setString(2, caregiver);
+            statement.setString(3, clinic);
+            ResultSet result = statement.executeQuery();
+            if (!result.next()) {
+                return;
+            }
+            byte[] old = result.getBytes(1);
+            SlotBitmap slots = SlotBitmap.fromBytes(old);
+            slots.set(slot);
+            PreparedStatement update = con.prepareStatement(updateSlots);
+            update.setBytes(1, slots.toBytes());
+            update.setDate(2, d);
+            update.setString(3, caregiver);
+            update.setString(4, clinic);
+            update.setBytes(5, old);
+            if (update.executeUpdate() == 1) {
+                return;
+            }
+        }
+    }
+
+    private static void rollback(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            EventLog.error(e);
+        }
+    }
+
+    // returns whether the cancellation was committed
+    private static boolean cancel(String[] tokens) {
+        if (currentCaregiver == null && currentPatient == null ) {
+            Output.println("Please login first!");
+            return false;
+        } else if (currentCaregiver != null) {
+            Output.println("welcome doctor, you are going to cancel an appointment!");
         } else {
-            System.out.println("welcome our patients, you are going to cancel an appointment!");
+            Output.println("welcome our patients, you are going to cancel an appointment!");
         }
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
-            return;
+            Output.println("Please try again!");
+            return false;
         }
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
         //caregiver and patient can just cancel their own appointment!
-        String patientcheck = "SELECT * FROM Appointments WHERE ID = ? AND P_name = ?";
-        String caregivercheck = "SELECT * FROM Appointments WHERE ID = ? AND C_name = ?";
+        // locked as it is read, so a concurrent cancel of the same appointment waits and then finds nothing
+        String patientcheck = "SELECT * FROM Appointments WITH (UPDLOCK) WHERE ID = ? AND P_name = ?";
+        String caregivercheck = "SELECT * FROM Appointments WITH (UPDLOCK) WHERE ID = ? AND C_name = ?";
         String cancel = "DELETE FROM Appointments WHERE Appointments.ID = ?";
-        String insert = "INSERT INTO Availabilities VALUES (?, ?)";
+        String insert = "INSERT INTO Availabilities (Time, Username, Clinic) VALUES (?, ?, ?)";
+        String addDose = "UPDATE Vaccines SET Doses = Doses + 1 WHERE Name = ? AND Clinic = ?";
         try {
-            if(currentPatient != null ){
-                PreparedStatement statementCheck = con.prepareStatement(patientcheck);
+            // the delete, the restored availability and the returned dose are one transaction
+            con.setAutoCommit(false);
+            PreparedStatement statementCheck;
+            if (currentPatient != null) {
+                statementCheck = con.prepareStatement(patientcheck);
                 statementCheck.setString(1, tokens[1]);
                 statementCheck.setString(2, currentPatient.getUsername());
-                ResultSet resultCheck = statementCheck.executeQuery();
-                if (resultCheck.next()) {
-                    // delete the appointment
-                    PreparedStatement statementCancel = con.prepareStatement(cancel);
-                    statementCancel.setString(1, tokens[1]);
-                    statementCancel.executeUpdate();
-                    // insert availabilities
-                    PreparedStatement statementInsert = con.prepareStatement(insert);
-                    statementInsert.setString(1, resultCheck.getString(5)); // Time
-                    statementInsert.setString(2, resultCheck.getString(2)); // Caregiver
-                    statementInsert.executeUpdate();
-                    // add dose
-                    Vaccine vaccine = new Vaccine.VaccineGetter(resultCheck.getString(4)).get();
-                    vaccine.increaseAvailableDoses(1);
-                    System.out.println("Canceled successfully!");
-                }
-                else {
-                    System.out.println("You have no such appointment!");
-                }
-            }
-            else{
-                PreparedStatement statementCheck = con.prepareStatement(caregivercheck);
+            } else {
+                statementCheck = con.prepareStatement(caregivercheck);
                 statementCheck.setString(1, tokens[1]);
                 statementCheck.setString(2, currentCaregiver.getUsername());
-                ResultSet resultCheck = statementCheck.executeQuery();
-                if (resultCheck.next()) {
-                    // delete the appointment
-                    PreparedStatement statementCancel = con.prepareStatement(cancel);
-                    statementCancel.setString(1, tokens[1]);
-                    statementCancel.executeUpdate();
-                    // insert availabilities
-                    PreparedStatement statementInsert = con.prepareStatement(insert);
-                    statementInsert.setString(1, resultCheck.getString(5)); // Time
-                    statementInsert.setString(2, resultCheck.getString(2)); // Caregiver
-                    statementInsert.executeUpdate();
-                    // add dose
-                    Vaccine vaccine = new Vaccine.VaccineGetter(resultCheck.getString(4)).get();
-                    vaccine.increaseAvailableDoses(1);
-                    System.out.println("Canceled successfully!");
-                }
-                else {
-                    System.out.println("You have no such appointment!");
-                }
             }
-
+            ResultSet resultCheck = statementCheck.executeQuery();
+            if (!resultCheck.next()) {
+                con.rollback();
+                Output.println("You have no such appointment!");
+                return false;
+            }
+            int id = resultCheck.getInt(1);
+            String caregiver = resultCheck.getString(2);
+            String patient = resultCheck.getString(3);
+            String vaccine = resultCheck.getString(4);
+            String time = resultCheck.getString(5);
+            Date date = resultCheck.getDate(5);
+            String clinic = resultCheck.getString("Clinic");
+            // delete the appointment
+            PreparedStatement statementCancel = con.prepareStatement(cancel);
+            statementCancel.setString(1, tokens[1]);
+            statementCancel.executeUpdate();
+            int slot = resultCheck.getInt(6); // Slot
+            boolean slotBooking = !resultCheck.wasNull();
+            if (slotBooking) {
+                // give the slot back to the caregiver
+                releaseSlot(con, date, caregiver, clinic, slot);
+            } else {
+                // insert availabilities
+                PreparedStatement statementInsert = con.prepareStatement(insert);
+                statementInsert.setString(1, time); // Time
+                statementInsert.setString(2, caregiver); // Caregiver
+                statementInsert.setString(3, clinic); // Clinic
+                statementInsert.executeUpdate();
+            }
+            // add dose
+            PreparedStatement statementDose = con.prepareStatement(addDose);
+            statementDose.setString(1, vaccine); // Vaccine
+            statementDose.setString(2, clinic);
+            statementDose.executeUpdate();
+            con.commit();
+            ConnectionManager.recordWrite();
+            if (slotBooking) {
+                afterCommit(() -> utilizationReport(clinic).onSlotCancel(time, caregiver, vaccine));
+            } else {
+                afterCommit(() -> utilizationReport(clinic).onCancel(time, caregiver, vaccine));
+            }
+            ChangeLog.cancelled(id, caregiver, patient, vaccine, time, clinic);
+            Output.println("Canceled successfully!");
+            return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            rollback(con);
+            EventLog.error(e);
         } finally {
             cm.closeConnection();
         }
+        return false;
+    }
 
+    private static void cancelDay(String[] tokens) {
+        // cancel_day <caregiver> <date> [end_date]
+        // check 1: only caregivers (clinic staff) can clear a caregiver's schedule
+        if (currentCaregiver == null) {
+            Output.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 3 or 4 (with the operation name)
+        if (tokens.length != 3 && tokens.length != 4) {
+            Output.println("Please try again!");
+            return;
+        }
+        String caregiver = tokens[1];
+        Date start;
+        Date end;
+        try {
+            start = Date.valueOf(tokens[2]);
+            end = tokens.length == 4 ? Date.valueOf(tokens[3]) : start;
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        // the appointments are locked as they are read so nobody cancels them concurrently
+        String findAppointments = "SELECT ID, P_name, V_name, Time FROM Appointments WITH (UPDLOCK) WHERE C_name = ? AND Time BETWEEN ? AND ? AND Clinic = ? ORDER BY Time, ID";
+        String findAvailability = "SELECT Time FROM Availabilities WITH (UPDLOCK) WHERE Username = ? AND Time BETWEEN ? AND ? AND Clinic = ?";
+        String deleteAppointments = "DELETE FROM Appointments WHERE C_name = ? AND Time BETWEEN ? AND ? AND Clinic = ?";
+        // the caregiver is out, so their remaining availability in the range goes as well
+        String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time BETWEEN ? AND ? AND Clinic = ?";
+        String deleteSlots = "DELETE FROM AvailabilitySlots WHERE Username = ? AND Time BETWEEN ? AND ? AND Clinic = ?";
+        String addDoses = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ? AND Clinic = ?";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement1 = con.prepareStatement(findAppointments);
+            statement1.setString(1, caregiver);
+            statement1.setDate(2, start);
+            statement1.setDate(3, end);
+            statement1.setString(4, currentClinic);
+            ResultSet result1 = statement1.executeQuery();
+            List<String[]> cancelled = new ArrayList<>(); // {Time, V_name, ID, P_name}
+            List<String> rebook = new ArrayList<>();
+            Map<String, Integer> dosesPerVaccine = new HashMap<>();
+            while (result1.next()) {
+                cancelled.add(new String[] {result1.getString(4), result1.getString(3), result1.getString(1), result1.getString(2)});
+                rebook.add("Appointment ID: " + result1.getInt(1) + " Patient: " + result1.getString(2)
+                        + " Vaccine: " + result1.getString(3) + " Date: " + result1.getString(4));
+                dosesPerVaccine.merge(result1.getString(3), 1, Integer::sum);
+            }
+            PreparedStatement statement2 = con.prepareStatement(findAvailability);
+            statement2.setString(1, caregiver);
+            statement2.setDate(2, start);
+            statement2.setDate(3, end);
+            statement2.setString(4, currentClinic);
+            ResultSet result2 = statement2.executeQuery();
+            List<String> removedAvailability = new ArrayList<>();
+            while (result2.next()) {
+                removedAvailability.add(result2.getString(1));
+            }
+            for (String delete : new String[] {deleteAppointments, deleteAvailability, deleteSlots}) {
+                PreparedStatement statement = con.prepareStatement(delete);
+                statement.setString(1, caregiver);
+                statement.setDate(2, start);
+                statement.setDate(3, end);
+                statement.setString(4, currentClinic);
+                statement.executeUpdate();
+            }
+            // one update per vaccine, sent together in a single batch
+            PreparedStatement statement3 = con.prepareStatement(addDoses);
+            for (Map.Entry<String, Integer> entry : dosesPerVaccine.entrySet()) {
+                statement3.setInt(1, entry.getValue());
+                statement3.setString(2, entry.getKey());
+                statement3.setString(3, currentClinic);
+                statement3.addBatch();
+            }
+            statement3.executeBatch();
+            con.commit();
+            ConnectionManager.recordWrite();
+            utilizationReport().onDayCancelled(caregiver, cancelled, removedAvailability);
+            for (String[] appointment : cancelled) {
+                ChangeLog.cancelled(Integer.parseInt(appointment[2]), caregiver, appointment[3], appointment[1], appointment[0], currentClinic);
+            }
+            Output.println("Canceled " + cancelled.size() + " appointment(s)!");
+            if (!rebook.isEmpty()) {
+                Output.println("Patients to rebook:");
+                for (String line : rebook) {
+                    Output.println(line);
+                }
+            }
+        } catch (SQLException e) {
+            rollback(con);
+            Output.println("Error occurred when canceling appointments");
+            EventLog.error(e);
+        } finally {
+            cm.closeConnection();
+        }
     }
 
-    private static void addDoses(String[] tokens) {
+    // returns whether the doses were written
+    private static boolean addDoses(String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
-            return;
+            Output.println("Please login as a caregiver first!");
+            return false;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
-            return;
+            Output.println("Please try again!");
+            return false;
         }
         String vaccineName = tokens[1];
         int doses = Integer.parseInt(tokens[2]);
         Vaccine vaccine = null;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            vaccine = new Vaccine.VaccineGetter(vaccineName, currentClinic).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
-            e.printStackTrace();
+            Output.println("Error occurred when adding doses");
+            EventLog.error(e);
         }
         // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
         //          table
+        boolean committed = false;
         if (vaccine == null) {
             try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
+                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses, currentClinic).build();
                 vaccine.saveToDB();
+                committed = true;
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+                Output.println("Error occurred when adding doses");
+                EventLog.error(e);
             }
         } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
                 vaccine.increaseAvailableDoses(doses);
+                committed = true;
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+                Output.println("Error occurred when adding doses");
+                EventLog.error(e);
             }
         }
-        System.out.println("Doses updated!");
+        if (committed) {
+            afterCommit(() -> utilizationReport().onDosesAdded(vaccineName, doses));
+        }
+        ConnectionManager.recordWrite();
+        Output.println("Doses updated!");
+        return committed;
+    }
+
+    private static void myCalendar(String[] tokens) {
+        // my_calendar <start_date> <end_date>
+        // check 1: only caregivers have a calendar
+        if (currentCaregiver == null) {
+            Output.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 (with the operation name)
+        if (tokens.length != 3) {
+            Output.println("Please try again!");
+            return;
+        }
+        Date start;
+        Date end;
+        try {
+            start = Date.valueOf(tokens[1]);
+            end = Date.valueOf(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid date!");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createReadConnection();
+        // appointments, day availability and slot availability as one stream ordered by date, the
+        // server merges the three index-ordered inputs and the rows are printed one day at a time
+        // while they arrive, so nothing but the current day is held in memory
+        String calendar = "SELECT Time, 0 AS Kind, ID, P_name, V_name, Slot, CAST(NULL AS BINARY(12)) AS Slots FROM Appointments " +
+                "WHERE C_name = ? AND Clinic = ? AND Time BETWEEN ? AND ? " +
+                "UNION ALL SELECT Time, 1, NULL, NULL, NULL, NULL, NULL FROM Availabilities " +
+                "WHERE Username = ? AND Clinic = ? AND Time BETWEEN ? AND ? " +
+                "UNION ALL SELECT Time, 2, NULL, NULL, NULL, NULL, Slots FROM AvailabilitySlots " +
+                "WHERE Username = ? AND Clinic = ? AND Time BETWEEN ? AND ? " +
+                "ORDER BY Time, Kind, Slot, ID";
+        try {
+            PreparedStatement statement = con.prepareStatement(calendar);
+            for (int i = 0; i < 3; i++) {
+                statement.setString(4 * i + 1, currentCaregiver.getUsername());
+                statement.setString(4 * i + 2, currentClinic);
+                statement.setDate(4 * i + 3, start);
+                statement.setDate(4 * i + 4, end);
+            }
+            ResultSet result = statement.executeQuery();
+            String day = null;
+            StringBuilder line = new StringBuilder();
+            int days = 0;
+            while (result.next()) {
+                String time = result.getString(1);
+                if (!time.equals(day)) {
+                    if (day != null) {
+                        Output.println(line.toString());
+                    }
+                    day = time;
+                    days++;
+                    line.setLength(0);
+                    line.append(day).append(':');
+                } else {
+                    line.append(';');
+                }
+                int kind = result.getInt(2);
+                if (kind == 0) {
+                    line.append(" appointment ").append(result.getInt(3)).append(' ')
+                            .append(result.getString(4)).append(' ').append(result.getString(5));
+                    int slot = result.getInt(6);
+                    if (!result.wasNull()) {
+                        line.append(" at ").append(SlotBitmap.timeOf(slot));
+                    }
+                } else if (kind == 1) {
+                    line.append(" available");
+                } else {
+                    SlotBitmap free = SlotBitmap.fromBytes(result.getBytes(7));
+                    line.append(' ').append(free.cardinality()).append(" free slot(s)");
+                    if (!free.isEmpty()) {
+                        line.append(" from ").append(SlotBitmap.timeOf(free.firstSetSlot()));
+                    }
+                }
+            }
+            if (day != null) {
+                Output.println(line.toString());
+            }
+            if (days == 0) {
+                Output.println("Nothing scheduled!");
+            }
+        } catch (SQLException e) {
+            Output.println("Error occurred when loading the calendar");
+            EventLog.error(e);
+        } finally {
+            cm.closeConnection();
+        }
     }
 
     private static void showAppointments(String[] tokens) {
+        // show_appointments [history]
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            Output.println("Please login first!");
             return;
         }
-        if (tokens.length != 1) {
-            System.out.println("Please try again!");
+        boolean history = tokens.length == 2 && tokens[1].equals("history");
+        if (tokens.length != 1 && !history) {
+            Output.println("Please try again!");
             return;
         }
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        Connection con = cm.createReadConnection();
         String username = "";
         String appointmentSearch = "";
         if (currentCaregiver != null) {
             username = currentCaregiver.getUsername();
-            appointmentSearch = "SELECT ID, V_name, Time, P_name FROM Appointments WHERE C_name = ? ORDER BY ID";
+            appointmentSearch = "SELECT ID, V_name, Time, P_name, Slot, Clinic FROM Appointments WHERE C_name = ? ORDER BY ID";
         }
         else if (currentPatient != null) {
             username = currentPatient.getUsername();
-            appointmentSearch = "SELECT ID, V_name, Time, C_name FROM Appointments WHERE P_name = ? ORDER BY ID";
+            appointmentSearch = "SELECT ID, V_name, Time, C_name, Slot, Clinic FROM Appointments WHERE P_name = ? ORDER BY ID";
         }
         try {
             PreparedStatement statement = con.prepareStatement(appointmentSearch);
@@ -551,38 +1559,197 @@ public class Scheduler {
             ResultSet result = statement.executeQuery();
             //boolean existAppointment = result.next();
             if(result.isBeforeFirst()) {
-                while (result.next()) {
-                    System.out.println("Appointment ID: " + result.getString(1));
-                    System.out.println("Vaccine: " + result.getString(2));
-                    System.out.println("Date: " + result.getString(3));
-                    if (currentPatient != null) {
-                        System.out.println("Caregiver: " + result.getString(4));
-                    } else {
-                        System.out.println("Patient: " + result.getString(4));
-                    }
-                }
+                printAppointments(result);
             } else {
-                System.out.println("You have no appointment! Having a good day!");
+                Output.println("You have no appointment! Having a good day!");
+            }
+            // the archive is only read when the history is asked for
+            if (history) {
+                PreparedStatement archiveStatement = con.prepareStatement(appointmentSearch.replace("FROM Appointments", "FROM AppointmentsArchive"));
+                archiveStatement.setString(1, username);
+                ResultSet archived = archiveStatement.executeQuery();
+                Output.println("Archived appointments:");
+                if (archived.isBeforeFirst()) {
+                    printAppointments(archived);
+                } else {
+                    Output.println("You have no archived appointment!");
+                }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            EventLog.error(e);
         } finally {
             cm.closeConnection();
         }
     }
 
+    private static void printAppointments(ResultSet result) throws SQLException {
+        while (result.next()) {
+            Output.println("Appointment ID: " + result.getString(1));
+            Output.println("Vaccine: " + result.getString(2));
+            Output.println("Date: " + result.getString(3));
+            int slot = result.getInt(5);
+            if (!result.wasNull()) {
+                Output.println("Time: " + SlotBitmap.timeOf(slot));
+            }
+            Output.println("Clinic: " + result.getString(6));
+            if (currentPatient != null) {
+                Output.println("Caregiver: " + result.getString(4));
+            } else {
+                Output.println("Patient: " + result.getString(4));
+            }
+        }
+    }
+
+    private static void archive(String[] tokens) {
+        // archive <days>
+        if (currentCaregiver == null) {
+            Output.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            Output.println("Please try again!");
+            return;
+        }
+        try {
+            // NumberFormatException is an IllegalArgumentException, so both bad input cases land below
+            int days = Integer.parseInt(tokens[1]);
+            int archived = new Archiver(days, Scheduler::onArchived).runOnce();
+            Output.println("Archived " + archived + " appointment(s)!");
+        } catch (IllegalArgumentException e) {
+            Output.println("Please enter a valid number of days (at least 1)!");
+        } catch (SQLException e) {
+            Output.println("Error occurred when archiving appointments");
+            EventLog.error(e);
+        }
+    }
+
+    // keep the aggregates of every loaded clinic in line with what the archiver removed
+    private static void onArchived(Date cutoff, Date today) {
+        for (UtilizationReport report : utilizationReports.values()) {
+            report.onArchived(cutoff.toString(), today.toString());
+        }
+    }
+
+    private static void report(String[] tokens) {
+        // report
+        // check 1: the report is meant for clinic staff, so only caregivers can see it
+        if (currentCaregiver == null) {
+            Output.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 1 (only the operation name)
+        if (tokens.length != 1) {
+            Output.println("Please try again!");
+            return;
+        }
+        // served from the in-memory aggregates, no database access needed
+        Output.println("Clinic: " + currentClinic);
+        utilizationReport().print();
+    }
+
+    private static void createClinic(String[] tokens) {
+        // create_clinic <name>
+        if (currentCaregiver == null) {
+            Output.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            Output.println("Please try again!");
+            return;
+        }
+        try {
+            if (new Clinic.ClinicGetter(tokens[1]).get() != null) {
+                Output.println("Clinic already exists!");
+                return;
+            }
+            Clinic clinic = new Clinic.ClinicBuilder(tokens[1]).build();
+            clinic.saveToDB();
+            clinics.put(clinic.getName(), clinic);
+            Output.println("Created clinic " + clinic.getName());
+        } catch (SQLException e) {
+            Output.println("Failed to create clinic.");
+            EventLog.error(e);
+        }
+    }
+
+    private static void useClinic(String[] tokens) {
+        // use_clinic <name>
+        if (tokens.length != 2) {
+            Output.println("Please try again!");
+            return;
+        }
+        try {
+            Clinic clinic = clinics.get(tokens[1]);
+            if (clinic == null) {
+                clinic = new Clinic.ClinicGetter(tokens[1]).get();
+            }
+            if (clinic == null) {
+                Output.println("No such clinic!");
+                return;
+            }
+            clinics.put(clinic.getName(), clinic);
+            currentClinic = clinic.getName();
+            Output.println("Using clinic " + currentClinic);
+        } catch (SQLException e) {
+            Output.println("Error occurred when switching clinic");
+            EventLog.error(e);
+        }
+    }
+
+    // the current clinic, cached after the first lookup
+    private static Clinic clinic() throws SQLException {
+        Clinic clinic = clinics.get(currentClinic);
+        if (clinic == null) {
+            clinic = new Clinic.ClinicGetter(currentClinic).get();
+            if (clinic == null) {
+                throw new SQLException("Unknown clinic " + currentClinic);
+            }
+            clinics.put(currentClinic, clinic);
+        }
+        return clinic;
+    }
+
+    private static UtilizationReport utilizationReport() {
+        return utilizationReport(currentClinic);
+    }
+
+    // aggregates of a clinic, loaded from the database the first time the clinic is used and only
+    // cached once that succeeded, so a failed load is simply retried on the next use
+    private static UtilizationReport utilizationReport(String clinic) {
+        UtilizationReport report = utilizationReports.get(clinic);
+        if (report == null) {
+            report = new UtilizationReport(clinic);
+            try {
+                report.rebuild();
+                UtilizationReport existing = utilizationReports.putIfAbsent(clinic, report);
+                if (existing != null) {
+                    report = existing;
+                }
+            } catch (SQLException e) {
+                Output.println("Error occurred when loading the utilization report");
+                EventLog.error(e);
+            }
+        }
+        return report;
+    }
+
     private static void logout(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first.");
+            Output.println("Please login first.");
             return;
         }
         if (tokens.length != 1) {
-            System.out.println("Please try again!");
+            Output.println("Please try again!");
             return;
         }
         currentPatient = null;
         currentCaregiver = null;
-        System.out.println("Successfully logged out!");
+        // a logged out session cannot be resumed anymore by this process
+        if (currentSessionToken != null) {
+            SessionTokens.revoke(currentSessionToken);
+            currentSessionToken = null;
+        }
+        Output.println("Successfully logged out!");
         return;
     }
 
@@ -0,0 +1,87 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.DatabaseBusyException;
+import scheduler.util.EventLog;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// everything the first command would otherwise pay for, done on a background thread while
+// the banner prints and the user types: class loading, the first TLS connects, preparing the
+// statements of the login path and warming up the password hashing code
+public class Startup {
+
+    // connections opened up front, enough for a command plus the parallel queries of another
+    private static final int PREWARM_CONNECTIONS = 2;
+
+    // classes the common commands need, loaded and initialized ahead of time
+    private static final String[] CLASSES = {
+            "scheduler.model.Caregiver",
+            "scheduler.model.Patient",
+            "scheduler.model.Vaccine",
+            "scheduler.model.Clinic",
+            "scheduler.db.AsyncDb",
+            "scheduler.util.SlotBitmap",
+    };
+
+    // statements of the login path, run once on every prewarmed connection so the driver has
+    // their handles cached by the time the user logs in
+    private static final String[] HOT_STATEMENTS = {
+            "SELECT Salt, Hash FROM Patients WHERE Username = ?",
+            "SELECT Salt, Hash FROM Caregivers WHERE Username = ?",
+    };
+
+    public static void warmUpInBackground(Runnable afterConnect) {
+        Thread thread = new Thread(() -> warmUp(afterConnect), "startup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void warmUp(Runnable afterConnect) {
+        ConnectionManager.excludeFromQueryCount();
+        for (String name : CLASSES) {
+            try {
+                Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                EventLog.error(e);
+            }
+        }
+        // the hash does not depend on the database, so do it first
+        Util.generateHash("warm-up", Util.generateSalt());
+        try {
+            ConnectionManager.prewarm(PREWARM_CONNECTIONS);
+            prepareHotStatements();
+            afterConnect.run();
+        } catch (DatabaseBusyException e) {
+            // the first command will report the problem
+            EventLog.error(e);
+        }
+    }
+
+    private static void prepareHotStatements() {
+        ConnectionManager[] managers = new ConnectionManager[PREWARM_CONNECTIONS];
+        try {
+            for (int i = 0; i < managers.length; i++) {
+                managers[i] = new ConnectionManager();
+                Connection con = managers[i].createConnection();
+                for (String hot : HOT_STATEMENTS) {
+                    PreparedStatement statement = con.prepareStatement(hot);
+                    statement.setString(1, "");
+                    statement.executeQuery().close();
+                    statement.close();
+                }
+            }
+        } catch (SQLException e) {
+            EventLog.error(e);
+        } finally {
+            for (ConnectionManager cm : managers) {
+                if (cm != null) {
+                    cm.closeConnection();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package scheduler.db;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// limits how many database operations can be in flight at once and stops sending
+// work to a database that keeps failing, so callers fail fast instead of piling up
+public class AdmissionControl {
+
+    // at most this many connections open at the same time
+    private static final int maxInFlight = parseInt(System.getenv("DbMaxInFlight"), 8);
+    // at most this many callers waiting for a permit, everyone beyond is rejected right away
+    private static final int maxQueued = parseInt(System.getenv("DbMaxQueued"), 16);
+    // how long a caller may wait for a permit
+    private static final long admitTimeoutMillis = parseInt(System.getenv("DbAdmitTimeoutMs"), 2000);
+    // consecutive failures that open the circuit, and how long it stays open
+    private static final int failureThreshold = parseInt(System.getenv("DbFailureThreshold"), 5);
+    private static final long openMillis = parseInt(System.getenv("DbCircuitOpenMs"), 10000);
+
+    private static final Semaphore permits = new Semaphore(maxInFlight, true);
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private static volatile long openUntilMillis = 0;
+    // when the last probe was let through, see acquire()
+    private static final AtomicLong probeStartedMillis = new AtomicLong();
+
+    // take a permit or throw DatabaseBusyException, every successful call must be paired with release()
+    public static void acquire() {
+        long now = System.currentTimeMillis();
+        if (now < openUntilMillis) {
+            throw new DatabaseBusyException("Database unavailable, please retry later!");
+        }
+        // the cooldown is over but the failures were not followed by a success yet: a single caller
+        // goes through as a probe and everybody else keeps failing fast until the probe's statements
+        // close the circuit (recordSuccess) or open it again (recordFailure). a probe that never
+        // reports back is replaced by the next caller after another open period
+        if (consecutiveFailures.get() >= failureThreshold) {
+            long started = probeStartedMillis.get();
+            if (now - started < openMillis || !probeStartedMillis.compareAndSet(started, now)) {
+                throw new DatabaseBusyException("Database unavailable, please retry later!");
+            }
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw new DatabaseBusyException("Database busy, please retry later!");
+        }
+        try {
+            if (!permits.tryAcquire(admitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new DatabaseBusyException("Database busy, please retry later!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseBusyException("Database busy, please retry later!");
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public static void release() {
+        permits.release();
+    }
+
+    public static void recordSuccess() {
+        consecutiveFailures.set(0);
+    }
+
+    // failed connects and statement timeouts, enough of them in a row open the circuit
+    public static void recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openUntilMillis = System.currentTimeMillis() + openMillis;
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package scheduler.db;
+
+import scheduler.util.EventLog;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// moves appointments older than the cutoff into AppointmentsArchive and drops availability
+// that lies in the past and old request tokens, so the live tables only
+// hold what can still change
+public class Archiver {
+
+    // rows moved per statement, small batches keep every transaction and its locks short
+    private static final int BATCH_SIZE = 500;
+
+    private final int archiveAfterDays;
+    // told after every pass with the archive cutoff and the date before which availability was
+    // dropped, so in-memory state built from the live tables can drop the same days
+    private final BiConsumer<Date, Date> onArchived;
+
+    // only whole days in the past, a cutoff of today or later would archive upcoming appointments
+    // without giving their availability and doses back
+    public Archiver(int archiveAfterDays, BiConsumer<Date, Date> onArchived) {
+        if (archiveAfterDays < 1) {
+            throw new IllegalArgumentException("archiveAfterDays must be at least 1");
+        }
+        this.archiveAfterDays = archiveAfterDays;
+        this.onArchived = onArchived;
+    }
+
+    // run a pass every hour on a background thread, starting right away
+    public void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(() -> {
+                ConnectionManager.excludeFromQueryCount();
+                r.run();
+            }, "archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce();
+            } catch (SQLException | DatabaseBusyException e) {
+                // try again on the next pass
+                EventLog.error(e);
+            }
+        }, 0, 1, TimeUnit.HOURS);
+    }
+
+    // returns the number of appointments archived
+    public int runOnce() throws SQLException {
+        Date cutoff = Date.valueOf(LocalDate.now().minusDays(archiveAfterDays));
+        // every batch is a single statement, so a row is always either live or archived
+        String moveAppointments = "DELETE TOP (?) FROM Appointments " +
+                "OUTPUT deleted.ID, deleted.C_name, deleted.P_name, deleted.V_name, deleted.Time, deleted.Slot, deleted.Clinic " +
+                "INTO AppointmentsArchive (ID, C_name, P_name, V_name, Time, Slot, Clinic) WHERE Time < ?";
+        // availability before today can never be booked anymore
+        Date today = Date.valueOf(LocalDate.now());
+        String dropAvailability = "DELETE TOP (?) FROM Availabilities WHERE Time < ?";
+        String dropSlots = "DELETE TOP (?) FROM AvailabilitySlots WHERE Time < ?";
+        int archived = 0;
+        int moved;
+        do {
+            moved = deleteBatch(moveAppointments, cutoff);
+            archived += moved;
+        } while (moved == BATCH_SIZE);
+        int dropped;
+        do {
+            dropped = deleteBatch(dropAvailability, today);
+        } while (dropped == BATCH_SIZE);
+        do {
+            dropped = deleteBatch(dropSlots, today);
+        } while (dropped == BATCH_SIZE);
+        // request tokens only need to outlive the retries of their request
+        Date yesterday = Date.valueOf(LocalDate.now().minusDays(1));
+        String dropTokens = "DELETE TOP (?) FROM RequestTokens WHERE CreatedAt < ?";
+        do {
+            dropped = deleteBatch(dropTokens, yesterday);
+        } while (dropped == BATCH_SIZE);
+        onArchived.accept(cutoff, today);
+        return archived;
+    }
+
+    private int deleteBatch(String delete, Date before) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(delete);
+            statement.setInt(1, BATCH_SIZE);
+            statement.setDate(2, before);
+            return statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
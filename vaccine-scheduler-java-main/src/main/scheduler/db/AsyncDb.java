@@ -0,0 +1,87 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// dedicated executor for database work, so independent queries can run in parallel
+// each on their own connection instead of one after the other
+public class AsyncDb {
+
+    private static final int threads = parseThreads(System.getenv("DbThreads"), 4);
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory());
+
+    @FunctionalInterface
+    public interface SqlSupplier<T> {
+        T get() throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface SqlRunnable {
+        void run() throws SQLException;
+    }
+
+    public static <T> CompletableFuture<T> supply(SqlSupplier<T> supplier) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return supplier.get();
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    public static CompletableFuture<Void> run(SqlRunnable runnable) {
+        return supply(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    // wait for the result and rethrow a failed query as the SQLException it was
+    public static <T> T join(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    private static int parseThreads(String value, int defaultThreads) {
+        if (value == null) {
+            return defaultThreads;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return defaultThreads;
+        }
+    }
+
+    // daemon threads so a pending query never keeps the application from quitting
+    private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "db-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
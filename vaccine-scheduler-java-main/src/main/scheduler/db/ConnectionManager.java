@@ -1,41 +1,351 @@
 package scheduler.db;
 
+import scheduler.util.EventLog;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    // fail a connect or a statement instead of blocking forever when the database is slow,
+    // and let the driver cache prepared statement handles on every (pooled) connection
+    private static final String options = ";loginTimeout=" + parseInt(System.getenv("DbLoginTimeoutSeconds"), 5) +
+            ";queryTimeout=" + parseInt(System.getenv("DbQueryTimeoutSeconds"), 10) +
+            ";disableStatementPooling=false;statementPoolingCacheSize=32";
+    // DbUrl takes a complete JDBC URL (e.g. a local SQL Server for development, with its own
+    // encrypt settings) in place of the Azure server name, likewise ReplicaDbUrl for the replica
+    private static final String connectionUrl = System.getenv("DbUrl") != null ? System.getenv("DbUrl") + options :
+            "jdbc:sqlserver://" + System.getenv("Server") + ".database.windows.net:1433;database=" + System.getenv("DBName") + options;
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
 
-    private Connection con = null;
+    // optional read replica, only used when the ReplicaServer or ReplicaDbUrl environment variable is set
+    private static final String replicaUrl = replicaUrl(System.getenv("ReplicaDbUrl"), System.getenv("ReplicaServer"));
+    // how far the replica may lag behind the primary, reads right after a write in this
+    // session go to the primary for that long so the user always sees their own changes
+    private static final long replicaMaxLagMillis = parseInt(System.getenv("ReplicaMaxLagSeconds"), 5) * 1000L;
 
-    public ConnectionManager() {
+    // time of the last write done by this session
+    private static volatile long lastWriteMillis = 0;
+
+    // the replica's lag is measured with the Heartbeat row, which the primary's time is written
+    // to every second: on the replica, its age is the lag plus at most one heartbeat interval.
+    // the measurement is reused for a second so not every read pays for it
+    private static final long heartbeatMillis = 1000;
+    // only one process writes the heartbeat (ReplicaHeartbeatWriter=true, e.g. the one running
+    // the archiver), the others only read it. without a writer the row gets old and every
+    // process simply keeps reading from the primary
+    private static final boolean heartbeatWriter = "true".equalsIgnoreCase(System.getenv("ReplicaHeartbeatWriter"));
+    private static volatile long replicaLagMillis = Long.MAX_VALUE;
+    private static volatile long replicaLagCheckedMillis = 0;
+
+    // statements prepared for commands, so the scenario runner can hold every command to a query
+    // budget. background work (warm-up, heartbeat, archiver) runs on threads excluded from the count
+    private static final AtomicLong preparedStatements = new AtomicLong();
+    private static final ThreadLocal<Boolean> uncounted = ThreadLocal.withInitial(() -> false);
+
+    // connections kept open between operations so a command does not pay for a new TLS
+    // connect every time, a connection that sat idle for a while is validated before reuse
+    private static final int poolSize = parseInt(System.getenv("DbPoolSize"), 4);
+    private static final long validateAfterMillis = 30000;
+    // callers do not close their statements, so a connection is retired after this many uses
+    // to keep whatever the driver holds on to per statement bounded
+    private static final int maxUses = 200;
+    private static final Deque<IdleConnection> idlePrimary = new ConcurrentLinkedDeque<>();
+    private static final Deque<IdleConnection> idleReplica = new ConcurrentLinkedDeque<>();
+
+    // the driver only has to be loaded once per process
+    static {
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+            EventLog.error(e);
+        }
+        if (heartbeatWriter) {
+            startHeartbeat();
         }
     }
 
+    private Connection con = null;
+    private Deque<IdleConnection> pool = idlePrimary;
+    private int uses = 0;
+
+    public ConnectionManager() {
+    }
+
+    // throws DatabaseBusyException instead of waiting when too many operations are in flight
+    // or the database keeps failing, the permit taken here is given back by closeConnection()
     public Connection createConnection() {
+        AdmissionControl.acquire();
+        pool = idlePrimary;
+        if (takeIdle(idlePrimary)) {
+            return tracked(con);
+        }
         try {
+            uses = 1;
             con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            AdmissionControl.recordSuccess();
         } catch (SQLException e) {
-            e.printStackTrace();
+            AdmissionControl.recordFailure();
+            AdmissionControl.release();
+            EventLog.error(e);
+            throw new DatabaseBusyException("Database unavailable, please retry later!");
+        }
+        return tracked(con);
+    }
+
+    // connection for read-only statements, goes to the replica when one is configured, this
+    // session has not written anything within the staleness bound and the replica is not
+    // lagging behind the primary by more than that bound
+    public Connection createReadConnection() {
+        if (replicaUrl == null || System.currentTimeMillis() - lastWriteMillis < replicaMaxLagMillis) {
+            return createConnection();
+        }
+        AdmissionControl.acquire();
+        pool = idleReplica;
+        if (!takeIdle(idleReplica)) {
+            try {
+                uses = 1;
+                con = DriverManager.getConnection(replicaUrl, userName, userPass);
+            } catch (SQLException e) {
+                // fall back to the primary if the replica is unreachable
+                AdmissionControl.release();
+                EventLog.error(e);
+                return createConnection();
+            }
+        }
+        if (replicaLagMillis() > replicaMaxLagMillis) {
+            closeConnection();
+            return createConnection();
+        }
+        return tracked(con);
+    }
+
+    // age of the heartbeat as seen by the replica, measured on this connection at most once per heartbeat
+    private long replicaLagMillis() {
+        long now = System.currentTimeMillis();
+        if (now - replicaLagCheckedMillis < heartbeatMillis) {
+            return replicaLagMillis;
+        }
+        String lag = "SELECT DATEDIFF_BIG(millisecond, Beat, SYSUTCDATETIME()) FROM Heartbeat WHERE Id = 1";
+        try {
+            PreparedStatement statement = con.prepareStatement(lag);
+            ResultSet resultSet = statement.executeQuery();
+            // no heartbeat yet counts as lagging
+            replicaLagMillis = resultSet.next() ? resultSet.getLong(1) : Long.MAX_VALUE;
+            statement.close();
+        } catch (SQLException e) {
+            EventLog.error(e);
+            replicaLagMillis = Long.MAX_VALUE;
+        }
+        replicaLagCheckedMillis = now;
+        return replicaLagMillis;
+    }
+
+    // keeps writing the primary's time into the Heartbeat row while the process runs
+    private static void startHeartbeat() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(() -> {
+                excludeFromQueryCount();
+                r.run();
+            }, "replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                Connection con = cm.createConnection();
+                PreparedStatement statement = con.prepareStatement("UPDATE Heartbeat SET Beat = SYSUTCDATETIME() WHERE Id = 1");
+                statement.executeUpdate();
+                statement.close();
+            } catch (SQLException | DatabaseBusyException e) {
+                // the next beat tries again, meanwhile the replica simply looks like it lags
+                EventLog.error(e);
+            } finally {
+                cm.closeConnection();
+            }
+        }, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // the connection as handed to callers: statements prepared on it tell AdmissionControl whether
+    // they ran or timed out, most commands reuse a pooled connection, so a slow database mostly
+    // shows up as statement timeouts rather than failed connects
+    private static Connection tracked(Connection con) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("prepareStatement") && !uncounted.get()) {
+                        preparedStatements.incrementAndGet();
+                    }
+                    Object result = invoke(con, method, args);
+                    if (result instanceof Statement) {
+                        return trackedStatement((Statement) result);
+                    }
+                    return result;
+                });
+    }
+
+    private static Statement trackedStatement(Statement statement) {
+        Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+                : statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if (!method.getName().startsWith("execute")) {
+                        return invoke(statement, method, args);
+                    }
+                    try {
+                        Object result = invoke(statement, method, args);
+                        AdmissionControl.recordSuccess();
+                        return result;
+                    } catch (SQLException e) {
+                        if (e instanceof SQLTimeoutException || "HY008".equals(e.getSQLState())) {
+                            AdmissionControl.recordFailure();
+                        }
+                        throw e;
+                    }
+                });
+    }
+
+    // call the method on the real object and throw what it throws, not the reflection wrapper
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
         }
-        return con;
     }
 
+    // number of statements prepared by commands so far in this process
+    public static long queryCount() {
+        return preparedStatements.get();
+    }
+
+    // statements prepared on the calling thread from now on do not count as queries of a command
+    public static void excludeFromQueryCount() {
+        uncounted.set(true);
+    }
+
+    // called after a successful write so that subsequent reads see it
+    public static void recordWrite() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    // hands the connection back to the pool, or closes it if the pool is full
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
         try {
-            this.con.close();
+            if (this.con.isClosed()) {
+                return;
+            }
+            // leave no transaction behind for the next user of the connection
+            if (!this.con.getAutoCommit()) {
+                this.con.rollback();
+                this.con.setAutoCommit(true);
+            }
+            if (uses < maxUses && pool.size() < poolSize) {
+                pool.offerFirst(new IdleConnection(this.con, uses));
+            } else {
+                this.con.close();
+            }
         } catch (SQLException e) {
-            e.printStackTrace();
+            EventLog.error(e);
+            closeQuietly(this.con);
+        } finally {
+            this.con = null;
+            AdmissionControl.release();
+        }
+    }
+
+    // open connections to the primary up front so the first commands find them in the pool
+    public static void prewarm(int connections) {
+        ConnectionManager[] managers = new ConnectionManager[Math.min(connections, poolSize)];
+        try {
+            for (int i = 0; i < managers.length; i++) {
+                managers[i] = new ConnectionManager();
+                managers[i].createConnection();
+            }
+        } finally {
+            for (ConnectionManager cm : managers) {
+                if (cm != null) {
+                    cm.closeConnection();
+                }
+            }
+        }
+    }
+
+    // reuse a pooled connection if there is a usable one
+    private boolean takeIdle(Deque<IdleConnection> idle) {
+        IdleConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            try {
+                if (System.currentTimeMillis() - entry.idleSince < validateAfterMillis || entry.con.isValid(2)) {
+                    this.con = entry.con;
+                    this.uses = entry.uses + 1;
+                    return true;
+                }
+            } catch (SQLException e) {
+                EventLog.error(e);
+            }
+            closeQuietly(entry.con);
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            EventLog.error(e);
+        }
+    }
+
+    private static String replicaUrl(String url, String server) {
+        if (url != null) {
+            return url + ";applicationIntent=ReadOnly" + options;
+        } else if (server != null) {
+            return "jdbc:sqlserver://" + server + ".database.windows.net:1433;database=" + System.getenv("DBName") +
+                    ";applicationIntent=ReadOnly" + options;
+        }
+        return null;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static class IdleConnection {
+        private final Connection con;
+        private final int uses;
+        private final long idleSince = System.currentTimeMillis();
+
+        IdleConnection(Connection con, int uses) {
+            this.con = con;
+            this.uses = uses;
         }
     }
 }
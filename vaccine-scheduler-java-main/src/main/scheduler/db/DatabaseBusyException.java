@@ -0,0 +1,12 @@
+package scheduler.db;
+
+// thrown instead of blocking when the database is overloaded or unreachable,
+// the command can simply be retried later
+public class DatabaseBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DatabaseBusyException(String message) {
+        super(message);
+    }
+}
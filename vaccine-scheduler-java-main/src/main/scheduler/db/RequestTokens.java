@@ -0,0 +1,157 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// results of commands sent with a client request token, so a retried request is answered from
+// here instead of running again. a token is claimed with a pending row in the RequestTokens table
+// before its command runs, so a retry that arrives while the first attempt is still running, or
+// that reaches another instance, finds the claim instead of running the command a second time.
+// completed results are also kept in a bounded in-memory map
+public class RequestTokens {
+
+    private static final int capacity = parseInt(System.getenv("RequestTokenCapacity"), 1024);
+    // a pending claim older than this is taken over, its process most likely died before completing it
+    private static final int pendingTimeoutSeconds = parseInt(System.getenv("RequestTokenTimeoutSeconds"), 300);
+    // longest output that is kept for replay, matches the Result column
+    private static final int maxResultLength = 1000;
+
+    // least recently used entries are dropped first
+    private static final Map<String, Result> recent = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    // returns null if the token is now claimed by the caller, who has to run the command and then
+    // complete() or abandon() the token. otherwise returns the claim that already exists, either
+    // the recorded result or a pending one whose command is still running
+    public static Result claim(String username, String token, String command) throws SQLException {
+        synchronized (recent) {
+            Result result = recent.get(username + ":" + token);
+            if (result != null) {
+                return result;
+            }
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String insert = "INSERT INTO RequestTokens (Username, Token, Command, Result, CreatedAt) VALUES (?, ?, ?, NULL, SYSUTCDATETIME())";
+        String select = "SELECT Command, Result FROM RequestTokens WHERE Username = ? AND Token = ?";
+        String takeOver = "UPDATE RequestTokens SET CreatedAt = SYSUTCDATETIME() WHERE Username = ? AND Token = ? AND Command = ?"
+                + " AND Result IS NULL AND CreatedAt < DATEADD(second, -?, SYSUTCDATETIME())";
+        try {
+            try {
+                PreparedStatement statement1 = con.prepareStatement(insert);
+                statement1.setString(1, username);
+                statement1.setString(2, token);
+                statement1.setString(3, command);
+                statement1.executeUpdate();
+                return null;
+            } catch (SQLException e) {
+                // anything but a primary key violation means we do not know whether the token is claimed
+                if (e.getErrorCode() != 2627) {
+                    throw e;
+                }
+            }
+            PreparedStatement statement2 = con.prepareStatement(select);
+            statement2.setString(1, username);
+            statement2.setString(2, token);
+            ResultSet resultSet = statement2.executeQuery();
+            if (!resultSet.next()) {
+                // the claim was abandoned in between, the retry has to try again
+                return new Result(command, null);
+            }
+            Result result = new Result(resultSet.getString("Command"), resultSet.getString("Result"));
+            if (!result.isPending()) {
+                synchronized (recent) {
+                    recent.put(username + ":" + token, result);
+                }
+                return result;
+            }
+            PreparedStatement statement3 = con.prepareStatement(takeOver);
+            statement3.setString(1, username);
+            statement3.setString(2, token);
+            statement3.setString(3, command);
+            statement3.setInt(4, pendingTimeoutSeconds);
+            return statement3.executeUpdate() == 1 ? null : result;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // records the output of the command that ran under a claimed token
+    public static void complete(String username, String token, String command, String output) throws SQLException {
+        if (output.length() > maxResultLength) {
+            output = output.substring(0, maxResultLength);
+        }
+        synchronized (recent) {
+            recent.put(username + ":" + token, new Result(command, output));
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String update = "UPDATE RequestTokens SET Result = ? WHERE Username = ? AND Token = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(update);
+            statement.setString(1, output);
+            statement.setString(2, username);
+            statement.setString(3, token);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // gives up a claimed token whose command failed, so a retry with it runs the command again
+    public static void abandon(String username, String token) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String delete = "DELETE FROM RequestTokens WHERE Username = ? AND Token = ? AND Result IS NULL";
+        try {
+            PreparedStatement statement = con.prepareStatement(delete);
+            statement.setString(1, username);
+            statement.setString(2, token);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static class Result {
+        private final String command;
+        private final String output;
+
+        Result(String command, String output) {
+            this.command = command;
+            this.output = output;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        // null while the command is still running
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isPending() {
+            return output == null;
+        }
+    }
+}
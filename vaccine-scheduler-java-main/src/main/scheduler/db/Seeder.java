@@ -0,0 +1,157 @@
+package scheduler.db;
+
+import scheduler.model.Clinic;
+import scheduler.util.SlotBitmap;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+// fills a development database (see DbUrl in ConnectionManager) with generated data, so the
+// scheduler can be tried and timed at a realistic scale without touching the cloud database:
+//   java scheduler.db.Seeder [schema=src/main/resources/create.sql] [caregivers=100] [patients=1000]
+//        [vaccines=5] [doses=100000] [days=30]
+// every generated user has the password SEED_PASSWORD. on every one of the next days, caregivers
+// with an even number are available for whole-day appointments and the others for 15-minute slots,
+// never both, so seeded caregivers can only be booked once per slot or day
+public class Seeder {
+
+    public static final String SEED_PASSWORD = "Seed#Pass1";
+    // rows sent per batch and committed together
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) throws SQLException, IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Expected name=value, got " + arg);
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int caregivers = Integer.parseInt(options.getOrDefault("caregivers", "100"));
+        int patients = Integer.parseInt(options.getOrDefault("patients", "1000"));
+        int vaccines = Integer.parseInt(options.getOrDefault("vaccines", "5"));
+        int doses = Integer.parseInt(options.getOrDefault("doses", "100000"));
+        int days = Integer.parseInt(options.getOrDefault("days", "30"));
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            if (options.containsKey("schema")) {
+                createSchema(con, options.get("schema"));
+            }
+            con.setAutoCommit(false);
+            // hashing is what makes creating users slow, every seeded user shares one salt and hash
+            byte[] salt = Util.generateSalt();
+            byte[] hash = Util.generateHash(SEED_PASSWORD, salt);
+            long start = System.nanoTime();
+            insertUsers(con, "Caregivers", "caregiver", caregivers, salt, hash);
+            insertUsers(con, "Patients", "patient", patients, salt, hash);
+            insertVaccines(con, vaccines, doses);
+            insertAvailability(con, caregivers, days);
+            con.commit();
+            System.out.println("Seeded " + caregivers + " caregivers, " + patients + " patients, " + vaccines
+                    + " vaccines and " + days + " days of availability in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } finally {
+            // rolls back whatever was not committed yet
+            cm.closeConnection();
+        }
+    }
+
+    // statements are separated by semicolons, comment lines are skipped
+    private static void createSchema(Connection con, String path) throws IOException, SQLException {
+        StringBuilder script = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            if (!line.trim().startsWith("--")) {
+                script.append(line).append('\n');
+            }
+        }
+        Statement statement = con.createStatement();
+        for (String sql : script.toString().split(";")) {
+            if (!sql.trim().isEmpty()) {
+                statement.execute(sql);
+            }
+        }
+        statement.close();
+    }
+
+    private static void insertUsers(Connection con, String table, String prefix, int count, byte[] salt, byte[] hash) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("INSERT INTO " + table + " VALUES (?, ?, ?)");
+        for (int i = 0; i < count; i++) {
+            statement.setString(1, prefix + i);
+            statement.setBytes(2, salt);
+            statement.setBytes(3, hash);
+            addToBatch(con, statement, i);
+        }
+        statement.executeBatch();
+        statement.close();
+    }
+
+    private static void insertVaccines(Connection con, int count, int doses) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("INSERT INTO Vaccines (Name, Doses, Clinic) VALUES (?, ?, ?)");
+        for (int i = 0; i < count; i++) {
+            statement.setString(1, "vaccine" + i);
+            statement.setInt(2, doses);
+            statement.setString(3, Clinic.DEFAULT_CLINIC);
+            addToBatch(con, statement, i);
+        }
+        statement.executeBatch();
+        statement.close();
+    }
+
+    private static void insertAvailability(Connection con, int caregivers, int days) throws SQLException {
+        PreparedStatement statement1 = con.prepareStatement("INSERT INTO Availabilities (Time, Username, Clinic) VALUES (?, ?, ?)");
+        PreparedStatement statement2 = con.prepareStatement("INSERT INTO AvailabilitySlots (Time, Username, Slots, Clinic) VALUES (?, ?, ?, ?)");
+        SlotBitmap allDay = new SlotBitmap();
+        allDay.setRange(0, SlotBitmap.SLOTS_PER_DAY);
+        byte[] slots = allDay.toBytes();
+        LocalDate today = LocalDate.now();
+        int rows = 0;
+        for (int day = 0; day < days; day++) {
+            Date d = Date.valueOf(today.plusDays(day));
+            for (int i = 0; i < caregivers; i++) {
+                if (i % 2 == 0) {
+                    statement1.setDate(1, d);
+                    statement1.setString(2, "caregiver" + i);
+                    statement1.setString(3, Clinic.DEFAULT_CLINIC);
+                    addToBatch(con, statement1, rows, statement2);
+                } else {
+                    statement2.setDate(1, d);
+                    statement2.setString(2, "caregiver" + i);
+                    statement2.setBytes(3, slots);
+                    statement2.setString(4, Clinic.DEFAULT_CLINIC);
+                    addToBatch(con, statement2, rows, statement1);
+                }
+                rows++;
+            }
+        }
+        statement1.executeBatch();
+        statement2.executeBatch();
+        statement1.close();
+        statement2.close();
+    }
+
+    // adds the current row and sends the batch (and the other pending ones) once it is full
+    private static void addToBatch(Connection con, PreparedStatement statement, int row, PreparedStatement... before) throws SQLException {
+        statement.addBatch();
+        if ((row + 1) % BATCH_SIZE == 0) {
+            for (PreparedStatement other : before) {
+                other.executeBatch();
+            }
+            statement.executeBatch();
+            con.commit();
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package scheduler.model;
 
+import scheduler.db.AsyncDb;
 import scheduler.db.ConnectionManager;
+import scheduler.util.SlotBitmap;
 import scheduler.util.Util;
 
 import java.sql.*;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 public class Caregiver {
     private final String username;
@@ -54,16 +57,110 @@ public class Caregiver {
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
+    public CompletableFuture<Void> saveToDBAsync() {
+        return AsyncDb.run(this::saveToDB);
+    }
+
+    public boolean uploadAvailability(Date d) throws SQLException {
+        return uploadAvailability(d, Clinic.DEFAULT_CLINIC);
+    }
+
+    // returns false if the caregiver already has slot appointments that day, a day availability
+    // next to them would let the same day be booked twice
+    public boolean uploadAvailability(Date d, String clinic) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+        String addAvailability = "INSERT INTO Availabilities (Time, Username, Clinic) SELECT ?, ?, ? WHERE NOT EXISTS " +
+                "(SELECT 1 FROM Appointments WHERE C_name = ? AND Time = ? AND Clinic = ? AND Slot IS NOT NULL)";
         try {
             PreparedStatement statement = con.prepareStatement(addAvailability);
             statement.setDate(1, d);
             statement.setString(2, this.username);
-            statement.executeUpdate();
+            statement.setString(3, clinic);
+            statement.setString(4, this.username);
+            statement.setDate(5, d);
+            statement.setString(6, clinic);
+            return statement.executeUpdate() == 1;
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public CompletableFuture<Boolean> uploadAvailabilityAsync(Date d, String clinic) {
+        return AsyncDb.supply(() -> uploadAvailability(d, clinic));
+    }
+
+    // mark the 15-minute slots in [fromSlot, toSlot) on the given day as free, returns false if
+    // the caregiver is already booked for the whole day
+    public boolean uploadSlots(Date d, String clinic, int fromSlot, int toSlot) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String dayBooked = "SELECT 1 FROM Appointments WHERE C_name = ? AND Time = ? AND Clinic = ? AND Slot IS NULL";
+        String getSlots = "SELECT Slots FROM AvailabilitySlots WHERE Time = ? AND Username = ? AND Clinic = ?";
+        // both writes re-check the whole-day booking, in case one is made between the check and the write
+        String noDayBooking = " AND NOT EXISTS (SELECT 1 FROM Appointments WHERE C_name = ? AND Time = ? AND Clinic = ? AND Slot IS NULL)";
+        String addSlots = "INSERT INTO AvailabilitySlots (Time, Username, Slots, Clinic) SELECT ?, ?, ?, ? WHERE 1 = 1" + noDayBooking;
+        // compare-and-set, only succeeds if nobody changed the bitmap since we read it
+        String updateSlots = "UPDATE AvailabilitySlots SET Slots = ? WHERE Time = ? AND Username = ? AND Clinic = ? AND Slots = ?" + noDayBooking;
+        try {
+            while (true) {
+                PreparedStatement check = con.prepareStatement(dayBooked);
+                check.setString(1, this.username);
+                check.setDate(2, d);
+                check.setString(3, clinic);
+                if (check.executeQuery().next()) {
+                    return false;
+                }
+                PreparedStatement statement = con.prepareStatement(getSlots);
+                statement.setDate(1, d);
+                statement.setString(2, this.username);
+                statement.setString(3, clinic);
+                ResultSet resultSet = statement.executeQuery();
+                if (!resultSet.next()) {
+                    SlotBitmap slots = new SlotBitmap();
+                    slots.setRange(fromSlot, toSlot);
+                    PreparedStatement insert = con.prepareStatement(addSlots);
+                    insert.setDate(1, d);
+                    insert.setString(2, this.username);
+                    insert.setBytes(3, slots.toBytes());
+                    insert.setString(4, clinic);
+                    insert.setString(5, this.username);
+                    insert.setDate(6, d);
+                    insert.setString(7, clinic);
+                    try {
+                        if (insert.executeUpdate() == 1) {
+                            return true;
+                        }
+                        // booked for the whole day in the meantime, the check above says so
+                        continue;
+                    } catch (SQLException e) {
+                        // another session inserted the row first (primary key violation), merge into it instead
+                        if (e.getErrorCode() != 2627) {
+                            throw e;
+                        }
+                        continue;
+                    }
+                }
+                byte[] old = resultSet.getBytes("Slots");
+                SlotBitmap slots = SlotBitmap.fromBytes(old);
+                slots.setRange(fromSlot, toSlot);
+                PreparedStatement update = con.prepareStatement(updateSlots);
+                update.setBytes(1, slots.toBytes());
+                update.setDate(2, d);
+                update.setString(3, this.username);
+                update.setString(4, clinic);
+                update.setBytes(5, old);
+                update.setString(6, this.username);
+                update.setDate(7, d);
+                update.setString(8, clinic);
+                if (update.executeUpdate() == 1) {
+                    return true;
+                }
+            }
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
@@ -71,6 +168,10 @@ public class Caregiver {
         }
     }
 
+    public CompletableFuture<Boolean> uploadSlotsAsync(Date d, String clinic, int fromSlot, int toSlot) {
+        return AsyncDb.supply(() -> uploadSlots(d, clinic, fromSlot, toSlot));
+    }
+
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
@@ -129,5 +230,10 @@ public class Caregiver {
                 cm.closeConnection();
             }
         }
+
+        // the fetch and the password hashing both run on the database executor
+        public CompletableFuture<Caregiver> getAsync() {
+            return AsyncDb.supply(this::get);
+        }
     }
 }
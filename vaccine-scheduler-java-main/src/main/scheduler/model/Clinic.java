@@ -0,0 +1,128 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class Clinic {
+    public static final String DEFAULT_CLINIC = "main";
+    // size of the range of appointment IDs owned by every clinic
+    public static final int ID_RANGE = 10000000;
+
+    private final String name;
+    private int idBase;
+
+    private Clinic(ClinicBuilder builder) {
+        this.name = builder.name;
+    }
+
+    private Clinic(ClinicGetter getter) {
+        this.name = getter.name;
+        this.idBase = getter.idBase;
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public int getIdBase() {
+        return idBase;
+    }
+
+    // insert the clinic, claiming the next free block of appointment IDs
+    public void saveToDB() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String lastBase = "SELECT MAX(IdBase) FROM Clinics";
+        String addClinic = "INSERT INTO Clinics VALUES (?, ?, ?)";
+        try {
+            PreparedStatement statement1 = con.prepareStatement(lastBase);
+            ResultSet resultSet = statement1.executeQuery();
+            this.idBase = 0;
+            if (resultSet.next() && resultSet.getObject(1) != null) {
+                this.idBase = resultSet.getInt(1) + ID_RANGE;
+            }
+            // IdBase is UNIQUE, so two clinics created at the same time cannot get the same block
+            PreparedStatement statement2 = con.prepareStatement(addClinic);
+            statement2.setString(1, this.name);
+            statement2.setInt(2, this.idBase);
+            statement2.setInt(3, this.idBase + 1);
+            statement2.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // first of count consecutive free appointment IDs of this clinic, claimed with a single atomic
+    // update on the caller's booking connection, so several scheduler instances never get the same
+    // ID and a booking that rolls back gives its IDs back. The clinic row stays locked until the
+    // booking commits, callers claim IDs as the last step before inserting the appointment
+    public int nextAppointmentIds(Connection con, int count) throws SQLException {
+        String claimIds = "UPDATE Clinics SET NextId = NextId + ? OUTPUT deleted.NextId WHERE Name = ?";
+        PreparedStatement statement = con.prepareStatement(claimIds);
+        statement.setInt(1, count);
+        statement.setString(2, this.name);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            throw new SQLException("Unknown clinic " + this.name);
+        }
+        int start = resultSet.getInt(1);
+        if (start + count > this.idBase + ID_RANGE) {
+            throw new SQLException("Clinic " + this.name + " ran out of appointment IDs");
+        }
+        return start;
+    }
+
+    public int nextAppointmentId(Connection con) throws SQLException {
+        return nextAppointmentIds(con, 1);
+    }
+
+    public static class ClinicBuilder {
+        private final String name;
+
+        public ClinicBuilder(String name) {
+            this.name = name;
+        }
+
+        public Clinic build() {
+            return new Clinic(this);
+        }
+    }
+
+    public static class ClinicGetter {
+        private final String name;
+        private int idBase;
+
+        public ClinicGetter(String name) {
+            this.name = name;
+        }
+
+        public Clinic get() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getClinic = "SELECT IdBase FROM Clinics WHERE Name = ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(getClinic);
+                statement.setString(1, this.name);
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    this.idBase = resultSet.getInt("IdBase");
+                    return new Clinic(this);
+                }
+                return null;
+            } catch (SQLException e) {
+                throw new SQLException();
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+}
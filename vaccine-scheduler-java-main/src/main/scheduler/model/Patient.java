@@ -1,10 +1,12 @@
 package scheduler.model;
 
+import scheduler.db.AsyncDb;
 import scheduler.db.ConnectionManager;
 import scheduler.util.Util;
 
 import java.sql.*;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 public class Patient {
     private final String Username;
@@ -47,6 +49,10 @@ public class Patient {
         }
     }
 
+    public CompletableFuture<Void> saveToDBAsync() {
+        return AsyncDb.run(this::saveToDB);
+    }
+
     public static class PatientBuilder {
         private final String Username;
         private final byte[] salt;
@@ -102,5 +108,10 @@ public class Patient {
                 cm.closeConnection();
             }
         }
+
+        // the fetch and the password hashing both run on the database executor
+        public CompletableFuture<Patient> getAsync() {
+            return AsyncDb.supply(this::get);
+        }
     }
 }
\ No newline at end of file
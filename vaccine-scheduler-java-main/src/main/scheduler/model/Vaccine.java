@@ -1,24 +1,30 @@
 package scheduler.model;
 
+import scheduler.db.AsyncDb;
 import scheduler.db.ConnectionManager;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
 
 public class Vaccine {
     private final String vaccineName;
     private int availableDoses;
+    // every clinic keeps its own dose inventory
+    private final String clinic;
 
     private Vaccine(VaccineBuilder builder) {
         this.vaccineName = builder.vaccineName;
         this.availableDoses = builder.availableDoses;
+        this.clinic = builder.clinic;
     }
 
     private Vaccine(VaccineGetter getter) {
         this.vaccineName = getter.vaccineName;
         this.availableDoses = getter.availableDoses;
+        this.clinic = getter.clinic;
     }
 
     // Getters
@@ -30,15 +36,20 @@ public class Vaccine {
         return availableDoses;
     }
 
+    public String getClinic() {
+        return clinic;
+    }
+
     public void saveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
+        String addDoses = "INSERT INTO vaccines (Name, Doses, Clinic) VALUES (?, ?, ?)";
         try {
             PreparedStatement statement = con.prepareStatement(addDoses);
             statement.setString(1, this.vaccineName);
             statement.setInt(2, this.availableDoses);
+            statement.setString(3, this.clinic);
             statement.executeUpdate();
         } catch (SQLException e) {
             throw new SQLException();
@@ -47,6 +58,10 @@ public class Vaccine {
         }
     }
 
+    public CompletableFuture<Void> saveToDBAsync() {
+        return AsyncDb.run(this::saveToDB);
+    }
+
     // Increment the available doses
     public void increaseAvailableDoses(int num) throws SQLException {
         if (num <= 0) {
@@ -57,11 +72,13 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        // relative to the stored count, so changes made by other sessions in the meantime are kept
+        String addAvailability  = "UPDATE vaccines SET Doses = Doses + ? WHERE name = ? AND Clinic = ?;";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+            PreparedStatement statement = con.prepareStatement(addAvailability);
+            statement.setInt(1, num);
             statement.setString(2, this.vaccineName);
+            statement.setString(3, this.clinic);
             statement.executeUpdate();
         } catch (SQLException e) {
             throw new SQLException();
@@ -79,12 +96,17 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        // relative to the stored count and only if enough doses are left there, not just in this object
+        String removeAvailability  = "UPDATE vaccines SET Doses = Doses - ? WHERE name = ? AND Clinic = ? AND Doses >= ?;";
         try {
             PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+            statement.setInt(1, num);
             statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            statement.setString(3, this.clinic);
+            statement.setInt(4, num);
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
@@ -92,21 +114,36 @@ public class Vaccine {
         }
     }
 
+    public CompletableFuture<Void> increaseAvailableDosesAsync(int num) {
+        return AsyncDb.run(() -> increaseAvailableDoses(num));
+    }
+
+    public CompletableFuture<Void> decreaseAvailableDosesAsync(int num) {
+        return AsyncDb.run(() -> decreaseAvailableDoses(num));
+    }
+
     @Override
     public String toString() {
         return "Vaccine{" +
                 "vaccineName='" + vaccineName + '\'' +
                 ", availableDoses=" + availableDoses +
+                ", clinic='" + clinic + '\'' +
                 '}';
     }
 
     public static class VaccineBuilder {
         private final String vaccineName;
         private int availableDoses;
+        private final String clinic;
 
         public VaccineBuilder(String vaccineName, int availableDoses) {
+            this(vaccineName, availableDoses, Clinic.DEFAULT_CLINIC);
+        }
+
+        public VaccineBuilder(String vaccineName, int availableDoses, String clinic) {
             this.vaccineName = vaccineName;
             this.availableDoses = availableDoses;
+            this.clinic = clinic;
         }
 
         public Vaccine build() throws SQLException {
@@ -117,19 +154,26 @@ public class Vaccine {
     public static class VaccineGetter {
         private final String vaccineName;
         private int availableDoses;
+        private final String clinic;
 
         public VaccineGetter(String vaccineName) {
+            this(vaccineName, Clinic.DEFAULT_CLINIC);
+        }
+
+        public VaccineGetter(String vaccineName, String clinic) {
             this.vaccineName = vaccineName;
+            this.clinic = clinic;
         }
 
         public Vaccine get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ? AND Clinic = ?";
             try {
                 PreparedStatement statement = con.prepareStatement(getVaccine);
                 statement.setString(1, this.vaccineName);
+                statement.setString(2, this.clinic);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
                     this.availableDoses = resultSet.getInt("Doses");
@@ -142,6 +186,9 @@ public class Vaccine {
                 cm.closeConnection();
             }
         }
+
+        public CompletableFuture<Vaccine> getAsync() {
+            return AsyncDb.supply(this::get);
+        }
     }
 }
-
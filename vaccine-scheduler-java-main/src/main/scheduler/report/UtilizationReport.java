@@ -0,0 +1,195 @@
+package scheduler.report;
+
+import scheduler.util.Output;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// aggregates of a single clinic, every clinic has its own instance and therefore its own lock
+public class UtilizationReport {
+
+    private final String clinic;
+
+    // date -> (caregiver -> number of appointments booked on that date)
+    private final TreeMap<String, TreeMap<String, Integer>> bookings = new TreeMap<>();
+    // vaccine -> doses remaining
+    private final TreeMap<String, Integer> doses = new TreeMap<>();
+    // date -> number of caregiver availabilities not yet booked
+    private final TreeMap<String, Integer> unusedAvailability = new TreeMap<>();
+
+    public UtilizationReport(String clinic) {
+        this.clinic = clinic;
+    }
+
+    // rebuild all aggregates from the database, this is only done once at startup,
+    // afterwards every write path keeps the aggregates up to date incrementally
+    public synchronized void rebuild() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String countBookings = "SELECT Time, C_name, COUNT(*) FROM Appointments WHERE Clinic = ? GROUP BY Time, C_name";
+        String countDoses = "SELECT Name, Doses FROM Vaccines WHERE Clinic = ?";
+        String countAvailability = "SELECT Time, COUNT(*) FROM Availabilities WHERE Clinic = ? GROUP BY Time";
+        try {
+            Map<String, TreeMap<String, Integer>> newBookings = new HashMap<>();
+            PreparedStatement statement1 = con.prepareStatement(countBookings);
+            statement1.setString(1, clinic);
+            ResultSet result1 = statement1.executeQuery();
+            while (result1.next()) {
+                newBookings.computeIfAbsent(result1.getDate(1).toString(), k -> new TreeMap<>())
+                        .put(result1.getString(2), result1.getInt(3));
+            }
+            Map<String, Integer> newDoses = new HashMap<>();
+            PreparedStatement statement2 = con.prepareStatement(countDoses);
+            statement2.setString(1, clinic);
+            ResultSet result2 = statement2.executeQuery();
+            while (result2.next()) {
+                newDoses.put(result2.getString(1), result2.getInt(2));
+            }
+            Map<String, Integer> newAvailability = new HashMap<>();
+            PreparedStatement statement3 = con.prepareStatement(countAvailability);
+            statement3.setString(1, clinic);
+            ResultSet result3 = statement3.executeQuery();
+            while (result3.next()) {
+                newAvailability.put(result3.getDate(1).toString(), result3.getInt(2));
+            }
+            // only swap in the new state once everything was read successfully
+            bookings.clear();
+            bookings.putAll(newBookings);
+            doses.clear();
+            doses.putAll(newDoses);
+            unusedAvailability.clear();
+            unusedAvailability.putAll(newAvailability);
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public synchronized void onReserve(String date, String caregiver, String vaccine) {
+        String day = normalize(date);
+        recordBooking(day, caregiver, vaccine, 1);
+        adjust(unusedAvailability, day, -1);
+    }
+
+    public synchronized void onCancel(String date, String caregiver, String vaccine) {
+        String day = normalize(date);
+        recordBooking(day, caregiver, vaccine, -1);
+        adjust(unusedAvailability, day, 1);
+    }
+
+    // a slot booking also takes away the caregiver's whole-day availability, if they had one
+    public synchronized void onSlotReserve(String date, String caregiver, String vaccine, boolean dayTaken) {
+        String day = normalize(date);
+        recordBooking(day, caregiver, vaccine, 1);
+        if (dayTaken) {
+            adjust(unusedAvailability, day, -1);
+        }
+    }
+
+    // only the slot is given back, the whole-day availability taken with it is not restored
+    public synchronized void onSlotCancel(String date, String caregiver, String vaccine) {
+        recordBooking(normalize(date), caregiver, vaccine, -1);
+    }
+
+    public synchronized void onAvailabilityUploaded(Date d) {
+        adjust(unusedAvailability, d.toString(), 1);
+    }
+
+    // a caregiver's day was cleared, the appointments are gone and so is their remaining availability
+    public synchronized void onDayCancelled(String caregiver, List<String[]> appointments, List<String> removedAvailability) {
+        for (String[] appointment : appointments) {
+            recordBooking(normalize(appointment[0]), caregiver, appointment[1], -1);
+        }
+        for (String date : removedAvailability) {
+            adjust(unusedAvailability, normalize(date), -1);
+        }
+    }
+
+    // appointments before the cutoff moved to the archive and availability before today was
+    // dropped, the doses those appointments used stay used
+    public synchronized void onArchived(String cutoff, String today) {
+        bookings.headMap(normalize(cutoff)).clear();
+        unusedAvailability.headMap(normalize(today)).clear();
+    }
+
+    public synchronized void onDosesAdded(String vaccine, int num) {
+        doses.merge(vaccine, num, Integer::sum);
+    }
+
+    // the unused availability map doubles as an ordered index of dates with free capacity,
+    // so the earliest bookable date is a single ceiling lookup
+    public synchronized String earliestAvailableDate(String fromDate) {
+        return unusedAvailability.ceilingKey(normalize(fromDate));
+    }
+
+    public synchronized String nextAvailableDate(String afterDate) {
+        return unusedAvailability.higherKey(normalize(afterDate));
+    }
+
+    public synchronized int dosesRemaining(String vaccine) {
+        return doses.getOrDefault(vaccine, 0);
+    }
+
+    public synchronized void print() {
+        Output.println("Doses remaining:");
+        if (doses.isEmpty()) {
+            Output.println("  (no vaccines)");
+        }
+        for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+            Output.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+        Output.println("Unused availability per date:");
+        if (unusedAvailability.isEmpty()) {
+            Output.println("  (no availability)");
+        }
+        for (Map.Entry<String, Integer> entry : unusedAvailability.entrySet()) {
+            Output.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+        Output.println("Appointments per caregiver per date:");
+        if (bookings.isEmpty()) {
+            Output.println("  (no appointments)");
+        }
+        for (Map.Entry<String, TreeMap<String, Integer>> day : bookings.entrySet()) {
+            for (Map.Entry<String, Integer> entry : day.getValue().entrySet()) {
+                Output.println("  " + day.getKey() + " " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+
+    private void recordBooking(String day, String caregiver, String vaccine, int delta) {
+        TreeMap<String, Integer> perCaregiver = bookings.computeIfAbsent(day, k -> new TreeMap<>());
+        adjust(perCaregiver, caregiver, delta);
+        if (perCaregiver.isEmpty()) {
+            bookings.remove(day);
+        }
+        doses.merge(vaccine, -delta, Integer::sum);
+    }
+
+    // add delta to the counter for key, dropping the entry once it reaches zero
+    private static void adjust(Map<String, Integer> counters, String key, int delta) {
+        int value = counters.merge(key, delta, Integer::sum);
+        if (value <= 0) {
+            counters.remove(key);
+        }
+    }
+
+    // dates typed by the user may not be zero padded, use the same form as the database returns
+    private static String normalize(String date) {
+        try {
+            return Date.valueOf(date).toString();
+        } catch (IllegalArgumentException e) {
+            return date;
+        }
+    }
+}
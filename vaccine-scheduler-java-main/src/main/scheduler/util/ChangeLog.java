@@ -0,0 +1,326 @@
+package scheduler.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// append-only feed of booked and cancelled appointments for downstream services, one JSON line
+// per change with a sequence number that grows by one with every change. scheduler processes
+// sharing the file take a file lock to append, so the numbers stay unique and in file order.
+// consumers keep the offset of the last change they processed and read on from there, see subscribe()
+public class ChangeLog {
+
+    public static final String BOOKED = "booked";
+    public static final String CANCELLED = "cancelled";
+
+    private static final Path changeLogFile = Paths.get(System.getenv("ChangeLogFile") != null ? System.getenv("ChangeLogFile") : "changes.log");
+    // a change line is far shorter than this, enough to find the last one at the end of the file
+    private static final int TAIL_BYTES = 4096;
+    private static final long pollMillis = 1000;
+
+    // file size and sequence number after our last append, saves reading the tail when no
+    // other process appended in between
+    private static long knownSize = -1;
+    private static long knownSequence = 0;
+
+    public static void booked(int id, String caregiver, String patient, String vaccine, String date, String clinic) {
+        append(BOOKED, id, caregiver, patient, vaccine, date, clinic);
+    }
+
+    public static void cancelled(int id, String caregiver, String patient, String vaccine, String date, String clinic) {
+        append(CANCELLED, id, caregiver, patient, vaccine, date, clinic);
+    }
+
+    // the change is already committed to the database when this is called, a failure to write
+    // it is logged and does not fail the command. the lock is only held, not referenced, hence
+    // the suppressed warning
+    @SuppressWarnings("try")
+    private static synchronized void append(String type, int id, String caregiver, String patient, String vaccine, String date, String clinic) {
+        try (FileChannel channel = FileChannel.open(changeLogFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            long sequence = lastSequence(channel) + 1;
+            String line = "{\"seq\":" + sequence + ",\"ts\":\"" + Instant.now() + "\",\"type\":" + Util.toJson(type)
+                    + ",\"id\":" + id + ",\"caregiver\":" + Util.toJson(caregiver) + ",\"patient\":" + Util.toJson(patient)
+                    + ",\"vaccine\":" + Util.toJson(vaccine) + ",\"date\":" + Util.toJson(date)
+                    + ",\"clinic\":" + Util.toJson(clinic) + "}\n";
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            knownSize = position;
+            knownSequence = sequence;
+        } catch (IOException | RuntimeException e) {
+            EventLog.error(e);
+        }
+    }
+
+    // sequence number of the last complete change in the file. a last line without its newline was
+    // torn by a process that died while appending, it is cut off so the next change starts on a
+    // line of its own, and lines that do not parse are skipped
+    private static long lastSequence(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == knownSize) {
+            return knownSequence;
+        }
+        if (size == 0) {
+            return 0;
+        }
+        long start = Math.max(0, size - TAIL_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (size - start));
+        int n = 0;
+        while (buffer.hasRemaining() && n >= 0) {
+            n = channel.read(buffer, start + buffer.position());
+        }
+        byte[] tail = buffer.array();
+        int end = buffer.position();
+        if (end > 0 && tail[end - 1] != '\n') {
+            int newline = lastNewline(tail, end - 1);
+            if (newline < 0 && start > 0) {
+                throw new IOException("Torn last line in " + changeLogFile + " longer than " + TAIL_BYTES + " bytes");
+            }
+            end = newline + 1;
+            channel.truncate(start + end);
+            EventLog.error(new IOException("Cut off torn last line in " + changeLogFile + " at offset " + (start + end)));
+        }
+        // walk back from the last complete line to the first one that parses
+        while (end > 0) {
+            int lineStart = lastNewline(tail, end - 1) + 1;
+            if (lineStart == 0 && start > 0) {
+                // the line may begin before the tail that was read
+                break;
+            }
+            try {
+                return Long.parseLong(parse(new String(tail, lineStart, end - 1 - lineStart, StandardCharsets.UTF_8)).get("seq"));
+            } catch (RuntimeException e) {
+                end = lineStart;
+            }
+        }
+        if (start == 0) {
+            return 0;
+        }
+        throw new IOException("No readable change in the last " + TAIL_BYTES + " bytes of " + changeLogFile);
+    }
+
+    // index of the last newline before the given index, or -1
+    private static int lastNewline(byte[] bytes, int before) {
+        for (int i = before - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // changes written after the given offset (0 for the start of the file), at most max of them
+    public static List<Change> read(long offset, int max) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        // nothing was booked or cancelled yet
+        if (!Files.exists(changeLogFile)) {
+            return changes;
+        }
+        try (FileChannel channel = FileChannel.open(changeLogFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(TAIL_BYTES);
+            byte[] pending = new byte[0];
+            long position = offset;
+            long lineStart = offset;
+            while (changes.size() < max) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+                byte[] chunk = new byte[pending.length + n];
+                System.arraycopy(pending, 0, chunk, 0, pending.length);
+                System.arraycopy(buffer.array(), 0, chunk, pending.length, n);
+                int from = 0;
+                for (int i = 0; i < chunk.length && changes.size() < max; i++) {
+                    if (chunk[i] == '\n') {
+                        lineStart += i + 1 - from;
+                        try {
+                            changes.add(new Change(parse(new String(chunk, from, i - from, StandardCharsets.UTF_8)), lineStart));
+                        } catch (RuntimeException e) {
+                            // a damaged line is skipped rather than stopping every consumer at it
+                            EventLog.error(new IOException("Skipped unreadable change in " + changeLogFile + " before offset " + lineStart, e));
+                        }
+                        from = i + 1;
+                    }
+                }
+                // a line that is still being written is picked up on the next read
+                pending = new byte[chunk.length - from];
+                System.arraycopy(chunk, from, pending, 0, pending.length);
+            }
+        }
+        return changes;
+    }
+
+    // delivers every change after the offset to the consumer on a background thread, first the
+    // ones already in the file and then new ones as they are appended
+    public static Subscription subscribe(long offset, Consumer<Change> consumer) {
+        Subscription subscription = new Subscription(offset);
+        Thread thread = new Thread(() -> {
+            while (!subscription.closed) {
+                try {
+                    List<Change> changes = read(subscription.offset, 1000);
+                    for (Change change : changes) {
+                        consumer.accept(change);
+                        subscription.offset = change.getOffset();
+                    }
+                    if (changes.isEmpty()) {
+                        Thread.sleep(pollMillis);
+                    }
+                } catch (IOException e) {
+                    EventLog.error(e);
+                    try {
+                        Thread.sleep(pollMillis);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "change-log-subscription");
+        thread.setDaemon(true);
+        thread.start();
+        return subscription;
+    }
+
+    // the flat objects written by append(), string values unescaped
+    private static Map<String, String> parse(String line) {
+        Map<String, String> fields = new HashMap<>();
+        int i = line.indexOf('{') + 1;
+        while (i < line.length() && line.charAt(i) == '"') {
+            int keyEnd = line.indexOf('"', i + 1);
+            String key = line.substring(i + 1, keyEnd);
+            i = keyEnd + 2; // skip the closing quote and the colon
+            StringBuilder value = new StringBuilder();
+            if (line.startsWith("null", i)) {
+                i += 4;
+                value = null;
+            } else if (line.charAt(i) == '"') {
+                for (i++; line.charAt(i) != '"'; i++) {
+                    char c = line.charAt(i);
+                    if (c == '\\') {
+                        c = line.charAt(++i);
+                        switch (c) {
+                            case 'n': value.append('\n'); break;
+                            case 'r': value.append('\r'); break;
+                            case 't': value.append('\t'); break;
+                            case 'u': value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16)); i += 4; break;
+                            default: value.append(c);
+                        }
+                    } else {
+                        value.append(c);
+                    }
+                }
+                i++;
+            } else {
+                while (i < line.length() && line.charAt(i) != ',' && line.charAt(i) != '}') {
+                    value.append(line.charAt(i++));
+                }
+            }
+            fields.put(key, value == null ? null : value.toString());
+            i++; // skip the comma
+        }
+        return fields;
+    }
+
+    public static class Subscription {
+        private volatile long offset;
+        private volatile boolean closed = false;
+
+        Subscription(long offset) {
+            this.offset = offset;
+        }
+
+        // offset after the last change delivered, to be saved by the consumer to resume from
+        public long getOffset() {
+            return offset;
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    public static class Change {
+        private final long sequence;
+        private final String time;
+        private final String type;
+        private final int id;
+        private final String caregiver;
+        private final String patient;
+        private final String vaccine;
+        private final String date;
+        private final String clinic;
+        private final long offset;
+
+        Change(Map<String, String> fields, long offset) {
+            this.sequence = Long.parseLong(fields.get("seq"));
+            this.time = fields.get("ts");
+            this.type = fields.get("type");
+            this.id = Integer.parseInt(fields.get("id"));
+            this.caregiver = fields.get("caregiver");
+            this.patient = fields.get("patient");
+            this.vaccine = fields.get("vaccine");
+            this.date = fields.get("date");
+            this.clinic = fields.get("clinic");
+            this.offset = offset;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getTime() {
+            return time;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        public String getClinic() {
+            return clinic;
+        }
+
+        // offset right after this change, reading from it continues with the next one
+        public long getOffset() {
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package scheduler.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// structured (JSON lines) event log, callers only put the event into a bounded ring buffer
+// and a background thread does the file I/O, when the buffer is full events are dropped
+// and counted rather than making the caller wait
+public class EventLog {
+
+    private static final int CAPACITY = 4096;
+    private static final String logFile = System.getenv("LogFile") != null ? System.getenv("LogFile") : "scheduler.log";
+
+    private static final ArrayBlockingQueue<String> events = new ArrayBlockingQueue<>(CAPACITY);
+    // compared by identity, tells the writer to flush and stop
+    private static final String SHUTDOWN = new String("shutdown");
+    private static final AtomicLong dropped = new AtomicLong();
+    // per thread, so an error of a background thread (heartbeat, archiver, warm-up) is never
+    // taken for an error of the command the main thread happens to be running
+    private static final ThreadLocal<long[]> errors = ThreadLocal.withInitial(() -> new long[1]);
+
+    private static final Thread writerThread = startWriter();
+
+    public static void command(String command, String user, long durationMicros, long queries, String outcome) {
+        publish("{\"ts\":\"" + Instant.now() + "\",\"event\":\"command\",\"command\":" + Util.toJson(command)
+                + ",\"user\":" + Util.toJson(user) + ",\"durationMicros\":" + durationMicros + ",\"queries\":" + queries
+                + ",\"outcome\":" + Util.toJson(outcome) + "}");
+    }
+
+    // replaces printing the stack trace to the console
+    public static void error(Throwable e) {
+        errors.get()[0]++;
+        StringWriter stack = new StringWriter();
+        e.printStackTrace(new PrintWriter(stack));
+        publish("{\"ts\":\"" + Instant.now() + "\",\"event\":\"error\",\"thread\":" + Util.toJson(Thread.currentThread().getName())
+                + ",\"exception\":" + Util.toJson(e.getClass().getName()) + ",\"message\":" + Util.toJson(e.getMessage())
+                + ",\"stack\":" + Util.toJson(stack.toString()) + "}");
+    }
+
+    // number of errors the calling thread logged so far, lets a caller tell whether a command ran into one
+    public static long errorCount() {
+        return errors.get()[0];
+    }
+
+    // write out what is still buffered, waits at most a second
+    public static void close() {
+        try {
+            if (events.offer(SHUTDOWN, 1, TimeUnit.SECONDS)) {
+                writerThread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void publish(String event) {
+        if (!events.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static Thread startWriter() {
+        Thread thread = new Thread(EventLog::run, "event-log");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void run() {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(logFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            while (true) {
+                String event = events.take();
+                if (event == SHUTDOWN) {
+                    writer.flush();
+                    return;
+                }
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    writer.write("{\"ts\":\"" + Instant.now() + "\",\"event\":\"dropped\",\"count\":" + lost + "}");
+                    writer.newLine();
+                }
+                writer.write(event);
+                writer.newLine();
+                // flush once the burst is written, not after every event
+                if (events.isEmpty()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // logging must never take the application down
+        }
+    }
+}
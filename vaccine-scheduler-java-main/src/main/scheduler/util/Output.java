@@ -0,0 +1,123 @@
+package scheduler.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// all user-facing output goes through one buffered writer that is flushed once per command,
+// in JSON mode every command produces a single JSON line holding its messages instead of free text
+public class Output {
+
+    private static final BufferedWriter writer =
+            new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+    private static boolean json = false;
+
+    // messages of the current command in JSON mode, line holds text printed without a newline yet
+    private static final List<String> messages = new ArrayList<>();
+    private static final StringBuilder line = new StringBuilder();
+    // text printed since startCapture(), null when nothing is being captured
+    private static StringBuilder capture = null;
+
+    public static synchronized void setJson(boolean enabled) {
+        json = enabled;
+    }
+
+    public static synchronized boolean isJson() {
+        return json;
+    }
+
+    public static synchronized void print(String text) {
+        if (capture != null) {
+            capture.append(text);
+        }
+        if (json) {
+            line.append(text);
+        } else {
+            write(text);
+        }
+    }
+
+    public static synchronized void println(String text) {
+        if (capture != null) {
+            capture.append(text).append('\n');
+        }
+        if (json) {
+            line.append(text);
+            messages.add(line.toString());
+            line.setLength(0);
+        } else {
+            write(text);
+            write(System.lineSeparator());
+        }
+    }
+
+    public static void println() {
+        println("");
+    }
+
+    // record what is printed from now on, in addition to printing it
+    public static synchronized void startCapture() {
+        capture = new StringBuilder();
+    }
+
+    // returns the text printed since startCapture(), lines separated by '\n'
+    public static synchronized String stopCapture() {
+        String captured = capture == null ? "" : capture.toString();
+        capture = null;
+        return captured;
+    }
+
+    // the prompt is only for people, JSON clients just send the next command
+    public static synchronized void prompt() {
+        if (!json) {
+            write("> ");
+            flush();
+        }
+    }
+
+    // called once a command is done, writes its JSON line (in JSON mode) and flushes
+    public static synchronized void endCommand(String command, String user, long durationMicros, long queries, String outcome) {
+        if (json) {
+            if (line.length() > 0) {
+                messages.add(line.toString());
+                line.setLength(0);
+            }
+            StringBuilder out = new StringBuilder(128);
+            out.append("{\"command\":").append(Util.toJson(command))
+                    .append(",\"user\":").append(Util.toJson(user))
+                    .append(",\"durationMicros\":").append(durationMicros)
+                    .append(",\"queries\":").append(queries)
+                    .append(",\"outcome\":").append(Util.toJson(outcome))
+                    .append(",\"output\":[");
+            for (int i = 0; i < messages.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(Util.toJson(messages.get(i)));
+            }
+            out.append("]}").append(System.lineSeparator());
+            messages.clear();
+            write(out.toString());
+        }
+        flush();
+    }
+
+    public static synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            // nothing sensible to do when stdout is gone
+        }
+    }
+
+    private static void write(String text) {
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            // nothing sensible to do when stdout is gone
+        }
+    }
+}
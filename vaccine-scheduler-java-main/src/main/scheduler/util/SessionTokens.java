@@ -0,0 +1,126 @@
+package scheduler.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// signed, expiring session tokens so a scripted client can log in once and resume its session
+// in later processes with a cheap HMAC check instead of a database lookup and PBKDF2.
+// a token is <payload>.<signature>, both base64url, the payload being role:expiry:username.
+// tokens are only issued when the SessionSecret environment variable is set, all processes
+// sharing the secret accept each other's tokens
+public class SessionTokens {
+
+    public static final String PATIENT = "patient";
+    public static final String CAREGIVER = "caregiver";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String secret = System.getenv("SessionSecret");
+    private static final long ttlMillis = parseLong(System.getenv("SessionTtlMinutes"), 60) * 60000L;
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    // signatures of revoked tokens with their expiry, an entry is dropped once its token expired anyway
+    private static final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled() {
+        return secret != null && !secret.isEmpty();
+    }
+
+    public static String issue(String username, String role) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        String payload = encoder.encodeToString((role + ":" + expiresAt + ":" + username).getBytes(StandardCharsets.UTF_8));
+        return payload + "." + encoder.encodeToString(sign(payload));
+    }
+
+    // returns the session of a token with a valid signature that is neither expired nor revoked, or null
+    public static Session verify(String token) {
+        int dot = token.indexOf('.');
+        if (!isEnabled() || dot < 0) {
+            return null;
+        }
+        String payload = token.substring(0, dot);
+        String signature = token.substring(dot + 1);
+        try {
+            if (!MessageDigest.isEqual(sign(payload), decoder.decode(signature)) || revoked.containsKey(signature)) {
+                return null;
+            }
+            String[] fields = new String(decoder.decode(payload), StandardCharsets.UTF_8).split(":", 3);
+            if (fields.length != 3 || Long.parseLong(fields[1]) < System.currentTimeMillis()) {
+                return null;
+            }
+            return new Session(fields[2], fields[0], Long.parseLong(fields[1]));
+        } catch (IllegalArgumentException e) {
+            // not base64 or not a number, so not one of our tokens
+            return null;
+        }
+    }
+
+    // the token is refused by this process from now on
+    public static void revoke(String token) {
+        Session session = verify(token);
+        if (session == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = revoked.values().iterator(); it.hasNext(); ) {
+            if (it.next() < now) {
+                it.remove();
+            }
+        }
+        revoked.put(token.substring(token.indexOf('.') + 1), session.getExpiresAt());
+    }
+
+    private static byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static class Session {
+        private final String username;
+        private final String role;
+        private final long expiresAt;
+
+        Session(String username, String role, long expiresAt) {
+            this.username = username;
+            this.role = role;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package scheduler.util;
+
+import java.time.LocalTime;
+import java.util.Arrays;
+
+// availability of one caregiver on one day as a fixed-size bitmap of 15-minute slots,
+// bit i set means the slot starting at i * 15 minutes after midnight is free
+public class SlotBitmap {
+
+    public static final int SLOT_MINUTES = 15;
+    public static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    // size of the persisted form, 96 bits
+    public static final int BYTES = SLOTS_PER_DAY / 8;
+
+    private final long[] words = new long[(SLOTS_PER_DAY + 63) / 64];
+
+    public SlotBitmap() {
+    }
+
+    public static SlotBitmap fromBytes(byte[] bytes) {
+        SlotBitmap bitmap = new SlotBitmap();
+        if (bytes == null) {
+            return bitmap;
+        }
+        for (int i = 0; i < Math.min(bytes.length, BYTES); i++) {
+            bitmap.words[i / 8] |= (bytes[i] & 0xFFL) << (8 * (i % 8));
+        }
+        return bitmap;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        for (int i = 0; i < BYTES; i++) {
+            bytes[i] = (byte) (words[i / 8] >>> (8 * (i % 8)));
+        }
+        return bytes;
+    }
+
+    public boolean get(int slot) {
+        checkSlot(slot);
+        return (words[slot >> 6] & (1L << slot)) != 0;
+    }
+
+    public void set(int slot) {
+        checkSlot(slot);
+        words[slot >> 6] |= 1L << slot;
+    }
+
+    public void clear(int slot) {
+        checkSlot(slot);
+        words[slot >> 6] &= ~(1L << slot);
+    }
+
+    // set every slot in [from, to)
+    public void setRange(int from, int to) {
+        for (int slot = from; slot < to; slot++) {
+            set(slot);
+        }
+    }
+
+    public void or(SlotBitmap other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    public void and(SlotBitmap other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    // index of the first free slot at or after from, or -1 if there is none
+    public int nextSetSlot(int from) {
+        if (from >= SLOTS_PER_DAY) {
+            return -1;
+        }
+        int index = from >> 6;
+        long word = words[index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int slot = index * 64 + Long.numberOfTrailingZeros(word);
+                return slot < SLOTS_PER_DAY ? slot : -1;
+            }
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    public int firstSetSlot() {
+        return nextSetSlot(0);
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return cardinality() == 0;
+    }
+
+    // the slot boundary an HH:mm time falls on, 24:00 being the end of the day, or -1 for a time
+    // between two boundaries. throws DateTimeParseException if it is not a time at all
+    public static int boundaryOf(String time) {
+        if (time.equals("24:00")) {
+            return SLOTS_PER_DAY;
+        }
+        LocalTime t = LocalTime.parse(time);
+        int minutes = t.getHour() * 60 + t.getMinute();
+        if (minutes % SLOT_MINUTES != 0 || t.getSecond() != 0 || t.getNano() != 0) {
+            return -1;
+        }
+        return minutes / SLOT_MINUTES;
+    }
+
+    public static LocalTime timeOf(int slot) {
+        checkSlot(slot);
+        return LocalTime.MIDNIGHT.plusMinutes((long) slot * SLOT_MINUTES);
+    }
+
+    private static void checkSlot(int slot) {
+        if (slot < 0 || slot >= SLOTS_PER_DAY) {
+            throw new IllegalArgumentException("Slot out of range!");
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SlotBitmap && Arrays.equals(words, ((SlotBitmap) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
@@ -14,9 +14,11 @@ public class Util {
     private static final int HASH_STRENGTH = 10;
     private static final int KEY_LENGTH = 16;
 
+    // seeding a SecureRandom is slow, so one instance is shared (it is thread-safe)
+    private static final SecureRandom random = new SecureRandom();
+
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
         random.nextBytes(salt);
         return salt;
@@ -48,4 +50,30 @@ public class Util {
 
         return Arrays.copyOf(bytes, i + 1);
     }
+
+    // the value as a JSON string literal, or null
+    public static String toJson(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
 }